@@ -0,0 +1,187 @@
+import benchmarks.Pipeline;
+import com.graphhopper.PathWrapper;
+import com.graphhopper.matching.EdgeMatch;
+import com.graphhopper.matching.MatchResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default package implementation of {@link Pipeline}, see there.
+ */
+public class PipelineBridge implements Pipeline {
+
+    private final CountingRecordWriter writer = new CountingRecordWriter();
+    private List<Trajectory> trajectories = Collections.emptyList();
+    private final List<Long> matchedIds = new ArrayList<>();
+    private final List<MatchResult> matched = new ArrayList<>();
+    private double[] routes = new double[0];
+    private MatchingPipeline exportPipeline;
+    private final MatchingPipeline.Rendered rendered = new MatchingPipeline.Rendered(1);
+    private final MatchingPipeline.Rows rows = new MatchingPipeline.Rows();
+
+    @Override
+    public long read(File csv) {
+        long[] points = new long[1];
+        new TrajectoryReader(csv).readTrajectories(t -> points[0] += t.size());
+        return points[0];
+    }
+
+    @Override
+    public int load(File csv) {
+        trajectories = new TrajectoryReader(csv).readTrajectories();
+        return trajectories.size();
+    }
+
+    @Override
+    public Object match(int trajectory) {
+        Trajectory t = trajectories.get(trajectory);
+        return MapMatcher.getInstance().run(Collections.singletonList(t)).get((long) t.getId());
+    }
+
+    @Override
+    public int matchAll() {
+        matchedIds.clear();
+        matched.clear();
+        for (Map.Entry<Long, MatchResult> entry : MapMatcher.getInstance().run(trajectories).entrySet()) {
+            matchedIds.add(entry.getKey());
+            matched.add(entry.getValue());
+        }
+        return matched.size();
+    }
+
+    @Override
+    public long writeNodeTimestamps(int index, String mode) {
+        long before = writer.records;
+        try {
+            MapMatcher.getInstance().writeNodeTimestamps(matchedIds.get(index), matched.get(index),
+                    MapMatcher.TimestampMode.valueOf(mode), writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.records - before;
+    }
+
+    @Override
+    public long writeSegments(int index) {
+        long before = writer.records;
+        try {
+            MapMatcher.getInstance().writeSegmentsWithoutEmptyEdges(matchedIds.get(index), matched.get(index), writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.records - before;
+    }
+
+    @Override
+    public long exportThroughPipeline(int index) {
+        if (exportPipeline == null)
+            exportPipeline = new MatchingPipeline(1, 1, 1).addExporter((tid, result, writer) -> MapMatcher.getInstance()
+                    .writeNodeTimestamps(tid, result, MapMatcher.TimestampMode.ROUTING, writer), writer);
+        long before = writer.records;
+        try {
+            exportPipeline.render(matchedIds.get(index), matched.get(index), rendered);
+            exportPipeline.copy(rendered, rows);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.records - before;
+    }
+
+    @Override
+    public void clearPathCache() {
+        MapMatcher.getInstance().getPathCache().clear();
+    }
+
+    @Override
+    public List<String> matchRoute(int trajectory) {
+        List<String> route = new ArrayList<>();
+        MatchResult result = (MatchResult) match(trajectory);
+        if (result != null)
+            addEdges(result, route);
+        return route;
+    }
+
+    @Override
+    public List<String> matchRouteOnline(int trajectory, int windowSize, int lag) {
+        Trajectory t = trajectories.get(trajectory);
+        List<String> route = new ArrayList<>();
+        OnlineMapMatcher online = new OnlineMapMatcher(windowSize, lag, (taxiId, finalized) -> addEdges(finalized, route));
+        for (int i = 0; i < t.size(); i++)
+            online.update(t.getTaxiId(), t.getLat(i), t.getLng(i), t.getTimestamp(i));
+        online.finishAll();
+        return route;
+    }
+
+    private static void addEdges(MatchResult result, List<String> route) {
+        for (EdgeMatch edge : result.getEdgeMatches())
+            route.add(edge.getEdgeState().getBaseNode() + ">" + edge.getEdgeState().getAdjNode());
+    }
+
+    @Override
+    public int loadRoutes(int gap) {
+        int pairs = 0;
+        for (Trajectory t : trajectories)
+            pairs += Math.max(0, t.size() - gap);
+        routes = new double[4 * pairs];
+        int r = 0;
+        for (Trajectory t : trajectories) {
+            for (int i = gap; i < t.size(); i++) {
+                routes[r++] = t.getLat(i - gap);
+                routes[r++] = t.getLng(i - gap);
+                routes[r++] = t.getLat(i);
+                routes[r++] = t.getLng(i);
+            }
+        }
+        return pairs;
+    }
+
+    @Override
+    public double route(int pair) {
+        int r = 4 * pair;
+        PathWrapper path = MapMatcher.getInstance().route(routes[r], routes[r + 1], routes[r + 2], routes[r + 3]);
+        return path.hasErrors() ? Double.NaN : path.getDistance();
+    }
+
+    /**
+     * Discards everything, keeping a checksum of the values so the exporter work can't be optimized away.
+     */
+    private static class CountingRecordWriter implements RecordWriter {
+
+        long records;
+        long checksum;
+
+        @Override
+        public void writeInt(int value) {
+            checksum += value;
+        }
+
+        @Override
+        public void writeLong(long value) {
+            checksum += value;
+        }
+
+        @Override
+        public void writeDouble(double value) {
+            checksum += Double.doubleToRawLongBits(value);
+        }
+
+        @Override
+        public void endRecord() {
+            records++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Allocation regression check of the exporters: runs {@link ExportBenchmark} with a warm path cache and fails if an
+ * exporter allocates more bytes per trajectory than its budget. Exporting a trajectory whose routes and edge
+ * geometries are cached should not allocate.
+ * <p>
+ * Runs in the verify phase of the benchmarks build ({@code mvn verify}), or by hand with
+ * {@code java -cp target/benchmarks.jar benchmarks.AllocationCheck}; exits with 1 if a budget is exceeded.
+ */
+public class AllocationCheck {
+
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+    private static final Map<String, Double> BUDGETS = new LinkedHashMap<>();
+
+    static {
+        BUDGETS.put("nodeTimestampsRouting", 64.0);
+        BUDGETS.put("segments", 64.0);
+        BUDGETS.put("nodeTimestampsMatchedEdges", 64.0);
+        BUDGETS.put("pipelineExport", 64.0);
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(ExportBenchmark.class.getName())
+                .param("coldCache", "false")
+                .param("points", "60")
+                .mode(Mode.Throughput)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+
+        boolean failed = false;
+        for (RunResult result : results) {
+            String benchmark = result.getParams().getBenchmark();
+            String method = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+            Result<?> allocation = result.getSecondaryResults().get(ALLOCATION);
+            Double budget = BUDGETS.get(method);
+            if (allocation == null || budget == null) continue;
+            boolean exceeded = allocation.getScore() > budget;
+            failed |= exceeded;
+            System.out.printf("%-28s %10.1f B/op, budget %8.1f B/op%s%n", method, allocation.getScore(), budget,
+                    exceeded ? "  EXCEEDED" : "");
+        }
+        if (failed)
+            System.exit(1);
+    }
+}
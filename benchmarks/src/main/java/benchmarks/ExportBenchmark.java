@@ -0,0 +1,81 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Post-processing of one matched trajectory: node timestamps in both modes and segments, whose speeds come from
+ * getSpeedMS, and the node timestamps once more through the render and copy steps of MatchingPipeline. With a cold cache the path cache is emptied before every operation, so every route is computed; with a
+ * warm cache every trajectory is exported once during setup, so every route is found in the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+
+    @Param({"100"})
+    int trajectories;
+
+    @Param({"60", "240"})
+    int points;
+
+    @Param({"15"})
+    int intervalSeconds;
+
+    @Param({"true", "false"})
+    boolean coldCache;
+
+    private Workload workload;
+    private int matched;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        workload = new Workload(trajectories, points, intervalSeconds);
+        workload.getPipeline().load(workload.getCsv());
+        matched = workload.getPipeline().matchAll();
+        if (!coldCache) {
+            for (int i = 0; i < matched; i++) {
+                workload.getPipeline().writeNodeTimestamps(i, "ROUTING");
+                workload.getPipeline().writeSegments(i);
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void nextTrajectory() {
+        next = (next + 1) % matched;
+        if (coldCache)
+            workload.getPipeline().clearPathCache();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        workload.delete();
+    }
+
+    @Benchmark
+    public long nodeTimestampsRouting() {
+        return workload.getPipeline().writeNodeTimestamps(next, "ROUTING");
+    }
+
+    @Benchmark
+    public long nodeTimestampsMatchedEdges() {
+        return workload.getPipeline().writeNodeTimestamps(next, "MATCHED_EDGES");
+    }
+
+    @Benchmark
+    public long segments() {
+        return workload.getPipeline().writeSegments(next);
+    }
+
+    @Benchmark
+    public long pipelineExport() {
+        return workload.getPipeline().exportThroughPipeline(next);
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MapMatching of a single trajectory, cycling through the synthetic trajectories. Sample time gives the latency
+ * percentiles per trajectory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchBenchmark {
+
+    @Param({"100"})
+    int trajectories;
+
+    @Param({"60", "240"})
+    int points;
+
+    @Param({"15", "60"})
+    int intervalSeconds;
+
+    private Workload workload;
+    private int loaded;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        workload = new Workload(trajectories, points, intervalSeconds);
+        loaded = workload.getPipeline().load(workload.getCsv());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        workload.delete();
+    }
+
+    @Benchmark
+    public Object match() {
+        next = (next + 1) % loaded;
+        return workload.getPipeline().match(next);
+    }
+}
@@ -0,0 +1,60 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Consistency check of the online matcher: feeds every synthetic trajectory point by point to an OnlineMapMatcher and
+ * fails if the finalized edges don't form one connected route, or if that route differs from matching the whole
+ * trajectory at once.
+ * <p>
+ * The default window holds a whole trajectory, so only the joins of the finalized chunks can make a difference. With
+ * longer trips than the window, points that are ambiguous on the grid can be matched differently without the rest of
+ * the trip, which this check reports as well.
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar benchmarks.OnlineCheck [window size] [lag] [points per trajectory]},
+ * exits with 1 if a trajectory differs.
+ */
+public class OnlineCheck {
+
+    public static void main(String[] args) throws IOException {
+        int windowSize = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        int lag = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int points = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+
+        Workload workload = new Workload(40, points, 15);
+        int failed = 0;
+        try {
+            Pipeline pipeline = workload.getPipeline();
+            int trajectories = pipeline.load(workload.getCsv());
+            for (int t = 0; t < trajectories; t++) {
+                List<String> batch = pipeline.matchRoute(t);
+                List<String> online = pipeline.matchRouteOnline(t, windowSize, lag);
+                String broken = firstBreak(online);
+                if (broken != null || !online.equals(batch)) {
+                    failed++;
+                    System.out.printf("trajectory %d: %d online edges, %d batch edges%s%n", t, online.size(),
+                            batch.size(), broken != null ? ", not connected at " + broken : "");
+                }
+            }
+            System.out.printf("%d of %d trajectories differ from the batch match (window %d, lag %d)%n", failed,
+                    trajectories, windowSize, lag);
+        } finally {
+            workload.delete();
+        }
+        if (failed > 0)
+            System.exit(1);
+    }
+
+    /**
+     * @return the first pair of consecutive edges where the adj node of one isn't the base node of the next, or null
+     */
+    private static String firstBreak(List<String> route) {
+        for (int i = 1; i < route.size(); i++) {
+            String previous = route.get(i - 1), next = route.get(i);
+            if (!previous.substring(previous.indexOf('>') + 1).equals(next.substring(0, next.indexOf('>'))))
+                return previous + " " + next;
+        }
+        return null;
+    }
+}
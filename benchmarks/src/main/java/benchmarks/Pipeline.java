@@ -0,0 +1,110 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * The stages of the matching pipeline as seen by the benchmarks. JMH does not accept benchmarks in the default
+ * package and named packages can't see the default package, so the implementation, PipelineBridge, lives in the
+ * default package and is loaded by name.
+ */
+public interface Pipeline {
+
+    /**
+     * Configure MapMatcher to import the given OSM file and load the bridge. Must be called before anything touches
+     * MapMatcher in this JVM.
+     */
+    static Pipeline create(File osmFile, File graphLocation) {
+        System.setProperty("mapmatcher.osmFile", osmFile.getPath());
+        System.setProperty("mapmatcher.graphLocation", graphLocation.getPath());
+        try {
+            return (Pipeline) Class.forName("PipelineBridge").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stream all trajectories of the file through the reader.
+     *
+     * @return number of points read
+     */
+    long read(File csv);
+
+    /**
+     * Keep the trajectories of the file in memory for {@link #match(int)}.
+     *
+     * @return number of trajectories loaded
+     */
+    int load(File csv);
+
+    /**
+     * Match one of the loaded trajectories.
+     *
+     * @return the match result, or null if the trajectory could not be matched
+     */
+    Object match(int trajectory);
+
+    /**
+     * Match all loaded trajectories and keep the results for the exporters.
+     *
+     * @return number of matched trajectories
+     */
+    int matchAll();
+
+    /**
+     * Write the node timestamps of a matched trajectory to a writer that discards them.
+     *
+     * @param mode name of a MapMatcher.TimestampMode
+     * @return number of rows written
+     */
+    long writeNodeTimestamps(int matched, String mode);
+
+    /**
+     * Write the segments, with the speed between consecutive points, of a matched trajectory to a writer that
+     * discards them.
+     *
+     * @return number of rows written
+     */
+    long writeSegments(int matched);
+
+    /**
+     * Export the node timestamps of a matched trajectory through the stages of MatchingPipeline without its threads:
+     * render them into a reused buffer like an export thread, then copy them to a writer that discards them like the
+     * writer thread.
+     *
+     * @return number of rows written
+     */
+    long exportThroughPipeline(int matched);
+
+    void clearPathCache();
+
+    /**
+     * Match one of the loaded trajectories in a single pass.
+     *
+     * @return the matched edges as "base>adj" node pairs, empty if the trajectory could not be matched
+     */
+    List<String> matchRoute(int trajectory);
+
+    /**
+     * Feed one of the loaded trajectories point by point to an OnlineMapMatcher and join the finalized edges.
+     *
+     * @return the finalized edges as "base>adj" node pairs, in the order they were finalized
+     */
+    List<String> matchRouteOnline(int trajectory, int windowSize, int lag);
+
+    /**
+     * Pair every point of the loaded trajectories with the point {@code gap} positions later in the same trajectory,
+     * as endpoints for {@link #route(int)}.
+     *
+     * @return number of pairs
+     */
+    int loadRoutes(int gap);
+
+    /**
+     * Route between the endpoints of a pair with MapMatcher's routing mode, without the path cache.
+     *
+     * @return route distance, or NaN if no route was found
+     */
+    double route(int pair);
+}
@@ -0,0 +1,44 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TrajectoryReader throughput, one operation reads the whole file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+    @Param({"2000"})
+    int trajectories;
+
+    @Param({"60", "240"})
+    int points;
+
+    @Param({"15"})
+    int intervalSeconds;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws IOException {
+        workload = new Workload(trajectories, points, intervalSeconds);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        workload.delete();
+    }
+
+    @Benchmark
+    public long read() {
+        return workload.getPipeline().read(workload.getCsv());
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single post-match route between two trajectory points, in each MapMatcher routing mode. A gap of 1 is the typical
+ * query of the exporters, consecutive points; larger gaps give longer routes, where CH and LM pay off. Run it on the
+ * real map with {@code -jvmArgs -Dbenchmark.osmFile=fortaleza.osm.xml}.
+ * <p>
+ * On the bundled 20x20 grid, 400 nodes, snapping the endpoints dominates a query and CH and LM only reach 0.7 to 0.9
+ * of the Dijkstra throughput; their speedup per query has to be measured on the Fortaleza extract.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+
+    @Param({"dijkstra", "ch", "lm"})
+    String routing;
+
+    @Param({"1", "10"})
+    int gap;
+
+    private Workload workload;
+    private int pairs;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        // every fork is a new JVM, so MapMatcher is created with this routing mode
+        System.setProperty("mapmatcher.routing", routing);
+        workload = new Workload(100, 60, 15);
+        workload.getPipeline().load(workload.getCsv());
+        pairs = workload.getPipeline().loadRoutes(gap);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        workload.delete();
+    }
+
+    @Benchmark
+    public double route() {
+        next = (next + 1) % pairs;
+        return workload.getPipeline().route(next);
+    }
+}
@@ -0,0 +1,85 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes taxi-like trajectories in the CSV format read by TrajectoryReader. The taxis drive along the streets of the
+ * bundled grid.osm.xml, turning at random crossings, and every fix gets some GPS noise.
+ */
+public final class SyntheticTrajectories {
+
+    // layout of grid.osm.xml
+    static final int GRID_SIZE = 20;
+    static final double ORIGIN_LAT = -3.75;
+    static final double ORIGIN_LON = -38.55;
+    static final double SPACING = 0.0009;
+
+    private static final double METERS_PER_DEGREE = 111_195;
+    private static final double SPEED = 8; // m/s
+    private static final double NOISE = 5; // m, standard deviation
+    private static final int TAXIS = 50;
+    private static final int[][] DIRECTIONS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+
+    private SyntheticTrajectories() {
+    }
+
+    /**
+     * @param csv             file to write
+     * @param trajectories    number of trajectories
+     * @param points          points per trajectory
+     * @param intervalSeconds time between two points of a trajectory
+     * @param seed            random seed, the same arguments always give the same file
+     */
+    public static void write(File csv, int trajectories, int points, int intervalSeconds, long seed) throws IOException {
+        Random random = new Random(seed);
+        // distance driven between two points, in units of the grid spacing
+        double step = SPEED * intervalSeconds / (SPACING * METERS_PER_DEGREE);
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(csv)))) {
+            out.println("taxi_id;traj_id;lat;lng;timestamp");
+            for (int id = 0; id < trajectories; id++) {
+                // start on an interior crossing, the border streets are never used so noise stays inside the map
+                int row = 1 + random.nextInt(GRID_SIZE - 2);
+                int col = 1 + random.nextInt(GRID_SIZE - 2);
+                int[] direction = turn(random, row, col, null);
+                double progress = 0;
+                long time = 1449916049000L + id * 1000L;
+                for (int p = 0; p < points; p++) {
+                    double lat = ORIGIN_LAT + (row + direction[1] * progress) * SPACING + random.nextGaussian() * NOISE / METERS_PER_DEGREE;
+                    double lon = ORIGIN_LON + (col + direction[0] * progress) * SPACING + random.nextGaussian() * NOISE / METERS_PER_DEGREE;
+                    out.printf(Locale.ROOT, "%d;%d;%.7f;%.7f;%d%n", id % TAXIS, id, lat, lon, time);
+
+                    time += intervalSeconds * 1000L;
+                    progress += step;
+                    while (progress >= 1) {
+                        progress -= 1;
+                        row += direction[1];
+                        col += direction[0];
+                        direction = turn(random, row, col, direction);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Pick a direction that stays on the interior streets, avoiding u-turns most of the time.
+     */
+    private static int[] turn(Random random, int row, int col, int[] current) {
+        while (true) {
+            int[] direction = DIRECTIONS[random.nextInt(DIRECTIONS.length)];
+            int nextRow = row + direction[1], nextCol = col + direction[0];
+            if (nextRow < 1 || nextCol < 1 || nextRow > GRID_SIZE - 2 || nextCol > GRID_SIZE - 2)
+                continue;
+            boolean uTurn = current != null && direction[0] == -current[0] && direction[1] == -current[1];
+            if (uTurn && random.nextInt(10) > 0)
+                continue;
+            return direction;
+        }
+    }
+}
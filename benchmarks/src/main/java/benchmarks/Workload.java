@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Temporary directory with the bundled OSM grid, its GraphHopper graph and a synthetic trajectory file. Another map,
+ * e.g. the Fortaleza extract, can be used with {@code -Dbenchmark.osmFile=<file>}; the synthetic trajectories are
+ * generated around the grid origin, so the map has to cover it.
+ */
+class Workload {
+
+    private final Path directory;
+    private final File csv;
+    private final Pipeline pipeline;
+
+    Workload(int trajectories, int points, int intervalSeconds) throws IOException {
+        directory = Files.createTempDirectory("regis-benchmark");
+        String osmFile = System.getProperty("benchmark.osmFile");
+        File osm;
+        if (osmFile != null) {
+            osm = new File(osmFile);
+        } else {
+            osm = directory.resolve("grid.osm.xml").toFile();
+            try (InputStream in = Workload.class.getResourceAsStream("/grid.osm.xml")) {
+                Files.copy(in, osm.toPath());
+            }
+        }
+        csv = directory.resolve("trajectories.csv").toFile();
+        SyntheticTrajectories.write(csv, trajectories, points, intervalSeconds, 42);
+        pipeline = Pipeline.create(osm, directory.resolve("graph").toFile());
+    }
+
+    File getCsv() {
+        return csv;
+    }
+
+    Pipeline getPipeline() {
+        return pipeline;
+    }
+
+    void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import com.graphhopper.matching.LocationIndexMatch;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.index.LocationIndexTree;
+import com.graphhopper.storage.index.QueryResult;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.PointList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Candidate lookup of the matching with the candidate edges of every grid cell cached. The first lookup in a cell
+ * collects all edges within the search radius of any point in the cell; later lookups in the cell only project the
+ * query point on those edges instead of searching the graph again. Cells are kept in a bounded LRU cache whose entries
+ * are spread over independently locked segments, so one instance is shared by all matching threads.
+ * <p>
+ * A lookup without a candidate within the radius, or with a larger radius than the cell was collected for, falls back
+ * to the uncached search and counts as a miss.
+ */
+public class CachedLocationIndex extends LocationIndexMatch {
+
+    private static final int SEGMENTS = 16;
+    private static final Comparator<QueryResult> BY_DISTANCE = Comparator.comparingDouble(QueryResult::getQueryDistance);
+
+    private final double cellSize;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxCells maximum number of cached cells
+     * @param cellSize width and height of a cell, in degrees
+     */
+    public CachedLocationIndex(GraphHopperStorage graph, LocationIndexTree index, int maxCells, double cellSize) {
+        super(graph, index);
+        this.cellSize = cellSize;
+        int segmentSize = Math.max(1, maxCells / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(segmentSize);
+    }
+
+    @Override
+    public List<QueryResult> findNClosest(double queryLat, double queryLon, EdgeFilter edgeFilter, double radius) {
+        long row = (long) Math.floor(queryLat / cellSize);
+        long column = (long) Math.floor(queryLon / cellSize);
+        long key = row << 32 ^ column & 0xffffffffL;
+        Segment segment = segments[(Long.hashCode(key) & 0x7fffffff) % SEGMENTS];
+        Cell cell;
+        synchronized (segment) {
+            cell = segment.get(key);
+        }
+        if (cell == null || cell.radius < radius) {
+            cell = collect(row, column, radius);
+            synchronized (segment) {
+                segment.put(key, cell);
+            }
+        } else {
+            List<QueryResult> results = project(cell, queryLat, queryLon, edgeFilter, radius);
+            if (!results.isEmpty()) {
+                hits.incrementAndGet();
+                return results;
+            }
+        }
+        misses.incrementAndGet();
+        return super.findNClosest(queryLat, queryLon, edgeFilter, radius);
+    }
+
+    /**
+     * Collect the edges within the radius of any point in the cell: within the radius plus half the cell diagonal of
+     * its center.
+     */
+    private Cell collect(long row, long column, double radius) {
+        double centerLat = (row + 0.5) * cellSize;
+        double centerLon = (column + 0.5) * cellSize;
+        double halfDiagonal = distCalc.calcDist(centerLat, centerLon, row * cellSize, column * cellSize);
+        List<QueryResult> found = super.findNClosest(centerLat, centerLon, EdgeFilter.ALL_EDGES, radius + halfDiagonal);
+        return new Cell(found, radius);
+    }
+
+    /**
+     * Project the point on every edge of the cell, like the graph search does on the edges it reaches, keeping the
+     * closest position on each edge.
+     */
+    private List<QueryResult> project(Cell cell, double queryLat, double queryLon, EdgeFilter edgeFilter, double radius) {
+        double normedRadius = distCalc.calcNormalizedDist(radius);
+        List<QueryResult> results = new ArrayList<>();
+        for (int e = 0; e < cell.edges.length; e++) {
+            EdgeIteratorState edge = cell.edges[e];
+            if (!edgeFilter.accept(edge)) continue;
+            int first = cell.offsets[e], last = cell.offsets[e + 1] - 1;
+            double toBase = distCalc.calcNormalizedDist(queryLat, queryLon, cell.lats[first], cell.lons[first]);
+            double toAdj = distCalc.calcNormalizedDist(queryLat, queryLon, cell.lats[last], cell.lons[last]);
+            double best = toBase;
+            int wayIndex = 0;
+            QueryResult.Position position = QueryResult.Position.TOWER;
+            for (int i = first; i < last; i++) {
+                if (distCalc.validEdgeDistance(queryLat, queryLon, cell.lats[i], cell.lons[i], cell.lats[i + 1], cell.lons[i + 1])) {
+                    double distance = distCalc.calcNormalizedEdgeDistance(queryLat, queryLon,
+                            cell.lats[i], cell.lons[i], cell.lats[i + 1], cell.lons[i + 1]);
+                    if (distance < best) {
+                        best = distance;
+                        wayIndex = i - first;
+                        position = QueryResult.Position.EDGE;
+                    }
+                }
+                double distance = i + 1 == last ? toAdj
+                        : distCalc.calcNormalizedDist(queryLat, queryLon, cell.lats[i + 1], cell.lons[i + 1]);
+                if (distance < best) {
+                    best = distance;
+                    wayIndex = i + 1 - first;
+                    position = i + 1 == last ? QueryResult.Position.TOWER : QueryResult.Position.PILLAR;
+                }
+            }
+            if (best >= normedRadius) continue;
+
+            QueryResult result = new QueryResult(queryLat, queryLon);
+            result.setClosestEdge(edge);
+            result.setWayIndex(wayIndex);
+            result.setSnappedPosition(position);
+            if (position == QueryResult.Position.TOWER)
+                result.setClosestNode(wayIndex == 0 ? edge.getBaseNode() : edge.getAdjNode());
+            else
+                result.setClosestNode(toBase <= toAdj ? edge.getBaseNode() : edge.getAdjNode());
+            result.setQueryDistance(distCalc.calcDenormalizedDist(best));
+            result.calcSnappedPoint(distCalc);
+            results.add(result);
+        }
+        Collections.sort(results, BY_DISTANCE);
+        return results;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long lookups = getHits() + getMisses();
+        return lookups == 0 ? 0 : (double) getHits() / lookups;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("snap cache: %d cells, %d hits, %d misses, hit ratio %.1f%%",
+                size(), getHits(), getMisses(), 100 * getHitRatio());
+    }
+
+    private static class Segment extends LinkedHashMap<Long, Cell> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Cell> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    /**
+     * Candidate edges of a cell with their geometry, base to adj node, flattened into shared arrays. The points of
+     * edge i are at offsets[i] until offsets[i + 1].
+     */
+    private static class Cell {
+
+        final double radius;
+        final EdgeIteratorState[] edges;
+        final int[] offsets;
+        final double[] lats;
+        final double[] lons;
+
+        Cell(List<QueryResult> found, double radius) {
+            this.radius = radius;
+            edges = new EdgeIteratorState[found.size()];
+            PointList[] geometries = new PointList[found.size()];
+            int points = 0;
+            // the search returns each edge once, oriented as it was reached
+            for (int e = 0; e < edges.length; e++) {
+                edges[e] = found.get(e).getClosestEdge();
+                geometries[e] = edges[e].fetchWayGeometry(3);
+                points += geometries[e].getSize();
+            }
+            offsets = new int[edges.length + 1];
+            lats = new double[points];
+            lons = new double[points];
+            int p = 0;
+            for (int e = 0; e < edges.length; e++) {
+                offsets[e] = p;
+                for (int i = 0; i < geometries[e].getSize(); i++, p++) {
+                    lats[p] = geometries[e].getLatitude(i);
+                    lons[p] = geometries[e].getLongitude(i);
+                }
+            }
+            offsets[edges.length] = p;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * CSV outputs of a batch run that can be resumed after a crash. The checkpoint file lists the trajectory ids whose
+ * rows are complete in all outputs, in batches that also hold the size of every output after them. A batch is only
+ * appended after the outputs are forced to disk, so on restart each output is truncated to its size in the last
+ * complete batch and the run continues after it, skipping the ids listed before.
+ * <p>
+ * Outputs must be opened in the same order in every run. Batches are committed every
+ * {@code -Dmapmatcher.checkpoint.interval} milliseconds, 10 seconds by default, or every 10000 trajectories.
+ * Trajectories finished after the last commit are matched again on restart.
+ */
+public class Checkpoint implements Closeable {
+
+    private static final int MAX_PENDING = 10_000;
+
+    private final Path checkpointFile;
+    private final FileChannel checkpoint;
+    private final List<FileChannel> outputs = new ArrayList<>();
+    private final List<RecordWriter> writers = new ArrayList<>();
+    private final Set<Long> completedBefore = new HashSet<>();
+    private final List<Long> pending = new ArrayList<>();
+    private final long commitInterval = Long.getLong("mapmatcher.checkpoint.interval", 10_000L);
+    private long lastCommit = System.currentTimeMillis();
+    // output sizes of the last complete batch read from the checkpoint, null for a new run
+    private long[] resumeAt;
+
+    /**
+     * Start a new run, or resume the run recorded in the checkpoint file.
+     */
+    public Checkpoint(String checkpointFile) throws IOException {
+        this.checkpointFile = Paths.get(checkpointFile);
+        long validLength = Files.exists(this.checkpointFile) ? readCheckpoint() : 0;
+        checkpoint = FileChannel.open(this.checkpointFile, CREATE, WRITE);
+        // anything after the complete batches was cut short by a crash
+        checkpoint.truncate(validLength);
+        checkpoint.position(validLength);
+        if (resumeAt != null)
+            System.out.println("Resuming after " + completedBefore.size() + " trajectories");
+    }
+
+    /**
+     * Open the next output. When resuming, the output is truncated to the rows of the completed trajectories and the
+     * header is not written again.
+     *
+     * @return writer for the rows of the trajectories, it must only be used by one thread at a time
+     */
+    public RecordWriter open(String outputFile, String... header) throws IOException {
+        int index = outputs.size();
+        FileChannel output;
+        RecordWriter writer;
+        if (resumeAt != null) {
+            if (index >= resumeAt.length)
+                throw new IllegalStateException("The checkpoint has no output " + outputFile);
+            output = FileChannel.open(Paths.get(outputFile), CREATE, WRITE);
+            output.truncate(resumeAt[index]);
+            output.position(resumeAt[index]);
+            writer = new CsvRecordWriter(output);
+        } else {
+            output = FileChannel.open(Paths.get(outputFile), CREATE, WRITE, TRUNCATE_EXISTING);
+            writer = new CsvRecordWriter(output, header);
+        }
+        outputs.add(output);
+        writers.add(writer);
+        return writer;
+    }
+
+    /**
+     * @return whether the rows of the trajectory were written by a previous run
+     */
+    public boolean isCompleted(long tid) {
+        return completedBefore.contains(tid);
+    }
+
+    /**
+     * Record that all rows of the trajectory were written to all outputs. Must only be called by one thread at a time.
+     */
+    public void completed(long tid) throws IOException {
+        pending.add(tid);
+        if (pending.size() >= MAX_PENDING || System.currentTimeMillis() - lastCommit >= commitInterval)
+            commit();
+    }
+
+    /**
+     * Commit the pending ids, close the outputs and remove the checkpoint, so the next run starts from scratch.
+     */
+    public void finish() throws IOException {
+        close();
+        Files.delete(checkpointFile);
+    }
+
+    /**
+     * Commit the pending ids and close the outputs, keeping the checkpoint.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            try {
+                for (RecordWriter writer : writers)
+                    writer.close();
+            } finally {
+                checkpoint.close();
+            }
+        }
+    }
+
+    private void commit() throws IOException {
+        // batch: output count and sizes, id count, ids, and a checksum to detect a batch cut short by a crash
+        ByteBuffer batch = ByteBuffer.allocate(4 + 8 * outputs.size() + 4 + 8 * pending.size() + 8);
+        long checksum = outputs.size();
+        batch.putInt(outputs.size());
+        for (int i = 0; i < outputs.size(); i++) {
+            writers.get(i).flush();
+            long offset = outputs.get(i).position();
+            batch.putLong(offset);
+            checksum = checksum * 31 + offset;
+        }
+        batch.putInt(pending.size());
+        checksum = checksum * 31 + pending.size();
+        for (long tid : pending) {
+            batch.putLong(tid);
+            checksum = checksum * 31 + tid;
+        }
+        batch.putLong(checksum);
+        batch.flip();
+        while (batch.hasRemaining())
+            checkpoint.write(batch);
+        checkpoint.force(false);
+        pending.clear();
+        lastCommit = System.currentTimeMillis();
+    }
+
+    /**
+     * @return length of the complete batches
+     */
+    private long readCheckpoint() throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(checkpointFile));
+        long validLength = 0;
+        List<Long> ids = new ArrayList<>();
+        while (data.remaining() >= 4) {
+            int outputCount = data.getInt();
+            if (outputCount < 0 || data.remaining() < 8L * outputCount + 4)
+                break;
+            long[] offsets = new long[outputCount];
+            long checksum = outputCount;
+            for (int i = 0; i < outputCount; i++) {
+                offsets[i] = data.getLong();
+                checksum = checksum * 31 + offsets[i];
+            }
+            int count = data.getInt();
+            if (count < 0 || data.remaining() < 8L * count + 8)
+                break;
+            checksum = checksum * 31 + count;
+            ids.clear();
+            for (int i = 0; i < count; i++) {
+                long tid = data.getLong();
+                ids.add(tid);
+                checksum = checksum * 31 + tid;
+            }
+            if (data.getLong() != checksum)
+                break;
+            completedBefore.addAll(ids);
+            resumeAt = offsets;
+            validLength = data.position();
+        }
+        return validLength;
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Fixed-width primitive column types of the columnar output format.
+ */
+public enum ColumnType {
+    INT(4),
+    LONG(8),
+    DOUBLE(8);
+
+    private final int width;
+
+    ColumnType(int width) {
+        this.width = width;
+    }
+
+    /**
+     * @return size in bytes of one value
+     */
+    public int getWidth() {
+        return width;
+    }
+}
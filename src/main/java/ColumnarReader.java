@@ -0,0 +1,143 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Reader for files written by {@link ColumnarRecordWriter}. Every block is memory-mapped and its columns are exposed
+ * as primitive buffer views over the mapping, so values are never copied onto the heap.
+ */
+public class ColumnarReader implements Closeable {
+
+    private final FileChannel channel;
+    private final String[] names;
+    private final ColumnType[] types;
+    private final List<Block> blocks = new ArrayList<>();
+    private long rowCount = 0;
+
+    public ColumnarReader(String filePath) throws IOException {
+        channel = FileChannel.open(Paths.get(filePath), READ);
+        try {
+            ByteBuffer header = read(0, 12);
+            if (header.getInt() != ColumnarRecordWriter.MAGIC)
+                throw new IOException(filePath + " is not a columnar file");
+            int version = header.getInt();
+            if (version != ColumnarRecordWriter.VERSION)
+                throw new IOException("Unsupported columnar file version " + version);
+            int columnCount = header.getInt();
+            names = new String[columnCount];
+            types = new ColumnType[columnCount];
+            long position = 12;
+            for (int i = 0; i < columnCount; i++) {
+                ByteBuffer column = read(position, 3);
+                types[i] = ColumnType.values()[column.get()];
+                byte[] name = new byte[column.getShort()];
+                read(position + 3, name.length).get(name);
+                names[i] = new String(name, StandardCharsets.UTF_8);
+                position += 3 + name.length;
+            }
+
+            int rowWidth = 0;
+            for (ColumnType type : types)
+                rowWidth += type.getWidth();
+            long size = channel.size();
+            while (position < size) {
+                int rows = read(position, 4).getInt();
+                long blockSize = 4 + (long) rows * rowWidth;
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, blockSize).order(ByteOrder.LITTLE_ENDIAN);
+                blocks.add(new Block(mapped, rows));
+                rowCount += rows;
+                position += blockSize;
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public String[] getColumnNames() {
+        return names.clone();
+    }
+
+    public ColumnType[] getColumnTypes() {
+        return types.clone();
+    }
+
+    /**
+     * @return index of the column with the given name, or -1 if there is none
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < names.length; i++)
+            if (names[i].equals(name)) return i;
+        return -1;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of columnar file");
+        buffer.flip();
+        return buffer;
+    }
+
+    public class Block {
+
+        private final ByteBuffer mapped;
+        private final int rows;
+        private final int[] offsets = new int[types.length];
+
+        private Block(ByteBuffer mapped, int rows) {
+            this.mapped = mapped;
+            this.rows = rows;
+            int offset = 4;
+            for (int i = 0; i < types.length; i++) {
+                offsets[i] = offset;
+                offset += rows * types[i].getWidth();
+            }
+        }
+
+        public int getRowCount() {
+            return rows;
+        }
+
+        public IntBuffer getIntColumn(int column) {
+            return slice(column, ColumnType.INT).asIntBuffer();
+        }
+
+        public LongBuffer getLongColumn(int column) {
+            return slice(column, ColumnType.LONG).asLongBuffer();
+        }
+
+        public DoubleBuffer getDoubleColumn(int column) {
+            return slice(column, ColumnType.DOUBLE).asDoubleBuffer();
+        }
+
+        private ByteBuffer slice(int column, ColumnType type) {
+            if (types[column] != type)
+                throw new IllegalArgumentException("Column " + names[column] + " is " + types[column] + ", not " + type);
+            ByteBuffer view = mapped.duplicate();
+            view.position(offsets[column]).limit(offsets[column] + rows * type.getWidth());
+            return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Binary columnar writer. The file starts with a header
+ * <pre>
+ * int magic, int version, int columnCount, columnCount x (byte type, short nameLength, byte[] utf8Name)
+ * </pre>
+ * followed by blocks of up to {@link #ROWS_PER_BLOCK} rows. A block is an int row count followed by each column as
+ * a contiguous run of fixed-width values. Everything is little-endian. See {@link ColumnarReader}.
+ */
+public class ColumnarRecordWriter implements RecordWriter {
+
+    static final int MAGIC = 0x434d4752; // "RGMC" in little-endian
+    static final int VERSION = 1;
+    static final int ROWS_PER_BLOCK = 1 << 16;
+
+    private final FileChannel channel;
+    private final String[] names;
+    private final ColumnType[] types;
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer[] block;
+    private final ByteBuffer[] columns;
+    private int column = 0;
+    private int rows = 0;
+
+    public ColumnarRecordWriter(String filePath, String[] names, ColumnType[] types) throws IOException {
+        if (names.length != types.length)
+            throw new IllegalArgumentException("Got " + names.length + " column names but " + types.length + " types");
+        this.names = names;
+        this.types = types;
+        channel = FileChannel.open(Paths.get(filePath), CREATE, WRITE, TRUNCATE_EXISTING);
+        columns = new ByteBuffer[types.length];
+        block = new ByteBuffer[types.length + 1];
+        block[0] = blockHeader;
+        for (int i = 0; i < types.length; i++) {
+            columns[i] = ByteBuffer.allocateDirect(ROWS_PER_BLOCK * types[i].getWidth()).order(ByteOrder.LITTLE_ENDIAN);
+            block[i + 1] = columns[i];
+        }
+        writeHeader();
+    }
+
+    @Override
+    public void writeInt(int value) throws IOException {
+        nextColumn(ColumnType.INT).putInt(value);
+    }
+
+    @Override
+    public void writeLong(long value) throws IOException {
+        nextColumn(ColumnType.LONG).putLong(value);
+    }
+
+    @Override
+    public void writeDouble(double value) throws IOException {
+        nextColumn(ColumnType.DOUBLE).putDouble(value);
+    }
+
+    @Override
+    public void endRecord() throws IOException {
+        if (column != types.length)
+            throw new IllegalStateException("Record has " + column + " values but " + types.length + " columns");
+        column = 0;
+        if (++rows == ROWS_PER_BLOCK)
+            writeBlock();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private ByteBuffer nextColumn(ColumnType type) {
+        if (column == types.length)
+            throw new IllegalStateException("Record has more values than the " + types.length + " columns");
+        if (types[column] != type)
+            throw new IllegalStateException("Column " + names[column] + " is " + types[column] + ", got " + type);
+        return columns[column++];
+    }
+
+    private void writeHeader() throws IOException {
+        int size = 12;
+        byte[][] encodedNames = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            encodedNames[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            size += 3 + encodedNames[i].length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(types.length);
+        for (int i = 0; i < names.length; i++) {
+            header.put((byte) types[i].ordinal());
+            header.putShort((short) encodedNames[i].length);
+            header.put(encodedNames[i]);
+        }
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    private void writeBlock() throws IOException {
+        if (rows == 0) return;
+        blockHeader.clear();
+        blockHeader.putInt(rows).flip();
+        long size = 0;
+        for (ByteBuffer buffer : block) {
+            if (buffer != blockHeader) buffer.flip();
+            size += buffer.remaining();
+        }
+        while (size > 0)
+            size -= channel.write(block);
+        for (ByteBuffer column : columns)
+            column.clear();
+        rows = 0;
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Matches trajectories on several local {@link Worker} processes. The coordinator prepares the graph once, starts the
+ * workers, which memory-map it read-only, and shards the trajectories between them over loopback sockets: by taxi
+ * id, or with {@code -Dmapmatcher.shard=tile} by the tile of the first point, {@code -Dmapmatcher.tileSize} degrees
+ * wide. The node timestamps sent back are merged into a single output file. Workers inherit the classpath and the
+ * {@code mapmatcher.*} system properties. The coordinator itself only prepares the graph and merges: it uses the static
+ * members of {@link MapMatcher} but never its instance, so it does not hold a graph of its own.
+ * <p>
+ * Usage: {@code Coordinator [processes] [trajectories resource] [output file]}
+ */
+public class Coordinator {
+
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+    private static final int CONNECT_TIMEOUT = 10 * 60 * 1000;
+
+    private final int processes;
+    private final int threadsPerProcess;
+    private final boolean shardByTile = "tile".equals(System.getProperty("mapmatcher.shard", "taxi"));
+    private final double tileSize = Double.parseDouble(System.getProperty("mapmatcher.tileSize", "0.05"));
+
+    public Coordinator(int processes) {
+        this.processes = processes;
+        this.threadsPerProcess = Math.max(1, Runtime.getRuntime().availableProcessors() / processes);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int processes = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        String input = args.length > 1 ? args[1] : "cfixed_taxi_hot_10_60min.csv";
+        String output = args.length > 2 ? args[2] : "nodesTimestamps.csv";
+
+        long start = System.currentTimeMillis();
+        new Coordinator(processes).run(new TrajectoryReader(input), output);
+        System.out.println("Matched on " + processes + " processes in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    public void run(TrajectoryReader reader, String outputFile) throws IOException, InterruptedException {
+        String graph = prepareGraph();
+        List<Process> workers = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, processes, InetAddress.getLoopbackAddress());
+             RecordWriter writer = new CsvRecordWriter(outputFile, MapMatcher.NODE_TIMESTAMPS_HEADER)) {
+            for (int i = 0; i < processes; i++)
+                workers.add(startWorker(server.getLocalPort(), i, graph));
+
+            // workers connect once their graph is loaded, in any order
+            server.setSoTimeout(CONNECT_TIMEOUT);
+            Socket[] sockets = new Socket[processes];
+            for (int i = 0; i < processes; i++) {
+                Socket socket = server.accept();
+                int index = new DataInputStream(socket.getInputStream()).readInt();
+                sockets[index] = socket;
+            }
+
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> mergers = new ArrayList<>();
+            DataOutputStream[] outs = new DataOutputStream[processes];
+            for (int i = 0; i < processes; i++) {
+                outs[i] = new DataOutputStream(new BufferedOutputStream(sockets[i].getOutputStream(), STREAM_BUFFER_SIZE));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream(), STREAM_BUFFER_SIZE));
+                Thread merger = new Thread(() -> {
+                    try {
+                        merge(in, writer);
+                    } catch (IOException | RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }, "merger-" + i);
+                merger.start();
+                mergers.add(merger);
+            }
+
+            try {
+                reader.readTrajectories(t -> {
+                    try {
+                        Worker.writeTrajectory(outs[shard(t)], t);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } finally {
+                for (DataOutputStream out : outs) {
+                    try {
+                        out.writeByte(Worker.END_OF_INPUT);
+                        out.flush();
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+
+            for (Thread merger : mergers)
+                merger.join();
+            for (Process worker : workers) {
+                if (worker.waitFor() != 0)
+                    failure.compareAndSet(null, new IllegalStateException("Worker exited with " + worker.exitValue()));
+            }
+            for (Socket socket : sockets)
+                socket.close();
+            if (failure.get() != null)
+                throw new IOException("Distributed matching failed", failure.get());
+        } finally {
+            for (Process worker : workers)
+                worker.destroy();
+        }
+    }
+
+    private int shard(Trajectory t) {
+        if (!shardByTile || t.size() == 0)
+            return Math.floorMod(t.getTaxiId(), processes);
+        long row = (long) Math.floor(t.getLat(0) / tileSize);
+        long column = (long) Math.floor(t.getLng(0) / tileSize);
+        return Math.floorMod(Long.hashCode(row * 31 + column), processes);
+    }
+
+    /**
+     * Copy the frames of one worker into the shared writer until the worker is done.
+     */
+    private static void merge(DataInputStream in, RecordWriter writer) throws IOException {
+        byte[] frame = new byte[1 << 12];
+        while (in.readByte() == Worker.RESULT) {
+            int records = in.readInt();
+            int length = in.readInt();
+            if (frame.length < length)
+                frame = new byte[Math.max(length, 2 * frame.length)];
+            in.readFully(frame, 0, length);
+            synchronized (writer) {
+                DataRecordWriter.copy(new DataInputStream(new ByteArrayInputStream(frame, 0, length)), records, writer);
+            }
+        }
+    }
+
+    /**
+     * Import the graph once, so the workers only have to map it. A graph given with mapmatcher.preparedGraph is used
+     * as it is. The graph imported here is closed again before the workers start.
+     */
+    private static String prepareGraph() {
+        String prepared = System.getProperty("mapmatcher.preparedGraph");
+        if (prepared != null)
+            return prepared;
+        String location = MapMatcher.getGraphLocation();
+        PrepareGraph.prepare(MapMatcher.getOsmFile(), location);
+        return location;
+    }
+
+    private Process startWorker(int port, int index, String graph) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("mapmatcher.") && !name.equals("mapmatcher.preparedGraph"))
+                command.add("-D" + name + "=" + System.getProperty(name));
+        }
+        command.add("-Dmapmatcher.preparedGraph=" + graph);
+        command.add(Worker.class.getName());
+        command.add(String.valueOf(port));
+        command.add(String.valueOf(index));
+        command.add(String.valueOf(threadsPerProcess));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Semicolon separated writer. Numbers are formatted into a reused StringBuilder and copied into a byte buffer that
+ * is drained to the file channel whenever it fills up, so memory does not grow with the output size.
+ */
+public class CsvRecordWriter implements RecordWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte SEPARATOR = ';';
+    private static final byte NEW_LINE = '\n';
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final StringBuilder field = new StringBuilder(32);
+    private boolean firstField = true;
+
+    public CsvRecordWriter(String filePath, String... header) throws IOException {
+        this(FileChannel.open(Paths.get(filePath), CREATE, WRITE, TRUNCATE_EXISTING), header);
+    }
+
+    /**
+     * Write to an already opened channel, starting at its current position. The header is only written when given.
+     */
+    public CsvRecordWriter(FileChannel channel, String... header) throws IOException {
+        this.channel = channel;
+        if (header.length > 0) {
+            for (String name : header) {
+                field.setLength(0);
+                field.append(name);
+                putField();
+            }
+            endRecord();
+        }
+    }
+
+    @Override
+    public void writeInt(int value) throws IOException {
+        field.setLength(0);
+        field.append(value);
+        putField();
+    }
+
+    @Override
+    public void writeLong(long value) throws IOException {
+        field.setLength(0);
+        field.append(value);
+        putField();
+    }
+
+    @Override
+    public void writeDouble(double value) throws IOException {
+        field.setLength(0);
+        field.append(value);
+        putField();
+    }
+
+    @Override
+    public void endRecord() throws IOException {
+        ensureRemaining(1);
+        buffer.put(NEW_LINE);
+        firstField = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void putField() throws IOException {
+        int length = field.length();
+        ensureRemaining(length + 1);
+        if (!firstField) buffer.put(SEPARATOR);
+        for (int i = 0; i < length; i++)
+            buffer.put((byte) field.charAt(i));
+        firstField = false;
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) drain();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes records as tagged binary values to a {@link DataOutput}, so they can be sent to another process and written
+ * there to the real output with {@link #copy(DataInput, RecordWriter)}.
+ */
+public class DataRecordWriter implements RecordWriter {
+
+    private static final byte INT = 'I';
+    private static final byte LONG = 'L';
+    private static final byte DOUBLE = 'D';
+    private static final byte END_OF_RECORD = 'E';
+
+    private final DataOutput out;
+    private int records;
+
+    public DataRecordWriter(DataOutput out) {
+        this.out = out;
+    }
+
+    /**
+     * Number of records written since the writer was created or last reset.
+     */
+    public int getRecords() {
+        return records;
+    }
+
+    public void resetRecords() {
+        records = 0;
+    }
+
+    @Override
+    public void writeInt(int value) throws IOException {
+        out.writeByte(INT);
+        out.writeInt(value);
+    }
+
+    @Override
+    public void writeLong(long value) throws IOException {
+        out.writeByte(LONG);
+        out.writeLong(value);
+    }
+
+    @Override
+    public void writeDouble(double value) throws IOException {
+        out.writeByte(DOUBLE);
+        out.writeDouble(value);
+    }
+
+    @Override
+    public void endRecord() throws IOException {
+        out.writeByte(END_OF_RECORD);
+        records++;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Replay {@code records} records written by a DataRecordWriter into another writer.
+     */
+    public static void copy(DataInput in, int records, RecordWriter writer) throws IOException {
+        while (records > 0) {
+            byte tag = in.readByte();
+            switch (tag) {
+                case INT:
+                    writer.writeInt(in.readInt());
+                    break;
+                case LONG:
+                    writer.writeLong(in.readLong());
+                    break;
+                case DOUBLE:
+                    writer.writeDouble(in.readDouble());
+                    break;
+                case END_OF_RECORD:
+                    writer.endRecord();
+                    records--;
+                    break;
+                default:
+                    throw new IOException("Unknown value tag " + tag);
+            }
+        }
+    }
+}
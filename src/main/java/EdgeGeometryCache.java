@@ -0,0 +1,103 @@
+import com.graphhopper.storage.Graph;
+import com.graphhopper.util.DistanceCalc;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.PointList;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Positions of snapped points along their edge. The geometry of an edge is read from the graph the first time it is
+ * needed and kept with the distance of every point from the base node, so a lookup only projects the point on the
+ * cached geometry and doesn't allocate. Distances use the plane projection, like the virtual edges GraphHopper splits
+ * an edge into when it routes from a point on it.
+ * <p>
+ * Thread-safe; the geometry of every edge ever looked up is kept.
+ */
+public class EdgeGeometryCache {
+
+    private static final DistanceCalc DIST_CALC = Helper.DIST_PLANE;
+
+    private final Graph graph;
+    private final AtomicReferenceArray<Geometry> geometries;
+
+    public EdgeGeometryCache(Graph graph) {
+        this.graph = graph;
+        this.geometries = new AtomicReferenceArray<>(graph.getAllEdges().getMaxId());
+    }
+
+    /**
+     * @return distance along the edge from its base node to the point, which must lie on the edge
+     */
+    public double getOffset(EdgeIteratorState edge, double lat, double lon) {
+        // the geometry of a loop doesn't tell its orientation from the nodes, so read it as the edge is oriented
+        if (edge.getBaseNode() == edge.getAdjNode())
+            return new Geometry(edge).project(lat, lon);
+        Geometry geometry = get(edge.getEdge());
+        double offset = geometry.project(lat, lon);
+        return edge.getBaseNode() == geometry.base ? offset : geometry.length - offset;
+    }
+
+    /**
+     * @return length of the edge along its geometry
+     */
+    public double getLength(EdgeIteratorState edge) {
+        return get(edge.getEdge()).length;
+    }
+
+    private Geometry get(int edgeId) {
+        Geometry geometry = geometries.get(edgeId);
+        if (geometry == null) {
+            geometry = new Geometry(graph.getEdgeIteratorState(edgeId, Integer.MIN_VALUE));
+            geometries.set(edgeId, geometry);
+        }
+        return geometry;
+    }
+
+    /**
+     * Points of an edge from its base node on, with their distance along the edge.
+     */
+    private static class Geometry {
+
+        final int base;
+        final double[] lats;
+        final double[] lons;
+        final double[] distances;
+        final double length;
+
+        Geometry(EdgeIteratorState edge) {
+            base = edge.getBaseNode();
+            PointList points = edge.fetchWayGeometry(3);
+            lats = new double[points.getSize()];
+            lons = new double[points.getSize()];
+            distances = new double[points.getSize()];
+            for (int i = 0; i < lats.length; i++) {
+                lats[i] = points.getLatitude(i);
+                lons[i] = points.getLongitude(i);
+                if (i > 0)
+                    distances[i] = distances[i - 1] + DIST_CALC.calcDist(lats[i - 1], lons[i - 1], lats[i], lons[i]);
+            }
+            length = distances[lats.length - 1];
+        }
+
+        /**
+         * @return distance from the base node to the position of the point on the closest segment
+         */
+        double project(double lat, double lon) {
+            double best = Double.MAX_VALUE;
+            int segment = 0;
+            for (int i = 0; i + 1 < lats.length; i++) {
+                double distance = DIST_CALC.validEdgeDistance(lat, lon, lats[i], lons[i], lats[i + 1], lons[i + 1])
+                        ? DIST_CALC.calcNormalizedEdgeDistance(lat, lon, lats[i], lons[i], lats[i + 1], lons[i + 1])
+                        : Math.min(DIST_CALC.calcNormalizedDist(lat, lon, lats[i], lons[i]),
+                        DIST_CALC.calcNormalizedDist(lat, lon, lats[i + 1], lons[i + 1]));
+                if (distance < best) {
+                    best = distance;
+                    segment = i;
+                }
+            }
+            double offset = distances[segment] + DIST_CALC.calcDist(lats[segment], lons[segment], lat, lon);
+            return Math.min(offset, distances[segment + 1]);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Speed statistics per matched edge and time bucket, accumulated while matching runs instead of exporting one row per
+ * point. Every (edge, bucket) keeps its count, speed sum and a sketch of the speeds, in primitive arrays of hash
+ * tables that are locked independently, so the export threads rarely contend.
+ * <p>
+ * The sketch uses the buckets of {@link Histogram} on speeds in 0.1 m/s: percentiles are accurate to within 12.5%,
+ * speeds above 100 m/s fall into the last bucket. A key takes 276 bytes and the tables are kept at most half full.
+ */
+public class EdgeSpeedAggregator {
+
+    /** the percentiles reported for every key */
+    public static final double[] PERCENTILES = {0.5, 0.85, 0.95};
+
+    /**
+     * Receives the statistics of one edge and time bucket.
+     */
+    public interface Visitor {
+        void visit(int edgeId, long bucketStart, int count, double meanSpeed, double[] percentileSpeeds) throws IOException;
+    }
+
+    private static final int STRIPES = 64;
+    private static final int BINS = 64;
+    private static final long MAX_UNITS = Histogram.lowerBound(BINS) - 1;
+
+    private final long bucketMillis;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param bucketMillis width of the time buckets, bucket n starts at n * bucketMillis
+     */
+    public EdgeSpeedAggregator(long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * The aggregator enabled with {@code -Dmapmatcher.speedSummary=true}, with buckets of
+     * {@code mapmatcher.speedSummary.bucket} minutes, 15 by default; null if disabled.
+     */
+    public static EdgeSpeedAggregator fromSystemProperties() {
+        if (!Boolean.getBoolean("mapmatcher.speedSummary"))
+            return null;
+        return new EdgeSpeedAggregator(Integer.getInteger("mapmatcher.speedSummary.bucket", 15) * 60_000L);
+    }
+
+    /**
+     * Add the speed of a point on the edge. Speeds that are negative or not finite, from points without elapsed time,
+     * are ignored.
+     */
+    public void add(int edgeId, long timestamp, double speed) {
+        if (!(speed >= 0) || Double.isInfinite(speed))
+            return;
+        long key = (long) edgeId << 32 | Math.floorDiv(timestamp, bucketMillis) & 0xffffffffL;
+        int bin = Histogram.index(Math.min(MAX_UNITS, (long) (speed * 10)));
+        int hash = hash(key);
+        Stripe stripe = stripes[hash >>> 26];
+        synchronized (stripe) {
+            stripe.add(key, hash, speed, bin);
+        }
+    }
+
+    /**
+     * @return number of (edge, bucket) keys
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the distinct edges of all keys, in ascending order
+     */
+    public int[] getEdgeIds() {
+        long[] keys = sortedKeys();
+        int[] edgeIds = new int[keys.length];
+        int count = 0;
+        for (long key : keys) {
+            int edgeId = (int) (key >>> 32);
+            if (count == 0 || edgeIds[count - 1] != edgeId)
+                edgeIds[count++] = edgeId;
+        }
+        return Arrays.copyOf(edgeIds, count);
+    }
+
+    /**
+     * Visit all keys ordered by edge and bucket. Keys added meanwhile may or may not be visited.
+     */
+    public void forEach(Visitor visitor) throws IOException {
+        long[] keys = sortedKeys();
+        int count = keys.length;
+
+        double[] percentiles = new double[PERCENTILES.length];
+        int[] bins = new int[BINS];
+        for (int i = 0; i < count; i++) {
+            long key = keys[i];
+            int hash = hash(key);
+            Stripe stripe = stripes[hash >>> 26];
+            int n;
+            double sum;
+            synchronized (stripe) {
+                int slot = stripe.find(key, hash);
+                n = stripe.counts[slot];
+                sum = stripe.sums[slot];
+                System.arraycopy(stripe.bins, slot * BINS, bins, 0, BINS);
+            }
+            for (int p = 0; p < PERCENTILES.length; p++)
+                percentiles[p] = percentile(bins, n, PERCENTILES[p]);
+            visitor.visit((int) (key >>> 32), (long) (int) key * bucketMillis, n, sum / n, percentiles);
+        }
+    }
+
+    private long[] sortedKeys() {
+        long[] keys = new long[0];
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                keys = Arrays.copyOf(keys, count + stripe.size);
+                for (int slot = 0; slot < stripe.counts.length; slot++) {
+                    if (stripe.counts[slot] > 0)
+                        keys[count++] = stripe.keys[slot];
+                }
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        return keys;
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * @return middle of the sketch bucket holding the speed at the quantile, in m/s
+     */
+    private static double percentile(int[] bins, int count, double quantile) {
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        int bin = 0;
+        while (bin < BINS - 1 && (seen += bins[bin]) < rank)
+            bin++;
+        return (Histogram.lowerBound(bin) + Histogram.lowerBound(bin + 1)) / 20.0;
+    }
+
+    private static int hash(long key) {
+        // murmur3 finalizer, the high bits select the stripe and the low bits the slot
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Open addressing hash table with linear probing; a slot is free while its count is 0.
+     */
+    private static class Stripe {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        long[] keys;
+        int[] counts;
+        double[] sums;
+        int[] bins;
+        int size;
+
+        Stripe() {
+            clear();
+        }
+
+        void add(long key, int hash, double speed, int bin) {
+            int slot = find(key, hash);
+            if (counts[slot] == 0) {
+                if (2 * (size + 1) > keys.length) {
+                    grow();
+                    slot = find(key, hash);
+                }
+                keys[slot] = key;
+                size++;
+            }
+            counts[slot]++;
+            sums[slot] += speed;
+            bins[slot * BINS + bin]++;
+        }
+
+        /**
+         * @return slot of the key, or the free slot where it belongs
+         */
+        int find(long key, int hash) {
+            int mask = keys.length - 1;
+            int slot = hash & mask;
+            while (counts[slot] > 0 && keys[slot] != key)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            double[] oldSums = sums;
+            int[] oldBins = bins;
+            allocate(2 * oldKeys.length);
+            for (int old = 0; old < oldKeys.length; old++) {
+                if (oldCounts[old] == 0) continue;
+                int slot = find(oldKeys[old], hash(oldKeys[old]));
+                keys[slot] = oldKeys[old];
+                counts[slot] = oldCounts[old];
+                sums[slot] = oldSums[old];
+                System.arraycopy(oldBins, old * BINS, bins, slot * BINS, BINS);
+            }
+        }
+
+        void clear() {
+            allocate(INITIAL_CAPACITY);
+            size = 0;
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            counts = new int[capacity];
+            sums = new double[capacity];
+            bins = new int[capacity * BINS];
+        }
+    }
+}
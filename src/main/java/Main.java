@@ -1,18 +1,42 @@
-import com.graphhopper.matching.MatchResult;
-
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
 
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
         TrajectoryReader reader = new TrajectoryReader("cfixed_taxi_hot_10_60min.csv");
-        List<Trajectory> trajectories = reader.readTrajectories();
-
-        Map<Long, MatchResult> results = MapMatcher.getInstance().run(trajectories);
-
-        MapMatcher.getInstance().generateNodeTimestamps(results, "nodesTimestamps.csv");
+        MapMatcher mapMatcher = MapMatcher.getInstance();
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        metrics.registerMBean();
+
+        // reading, matching and exporting overlap; a crashed run resumes from the checkpoint
+        System.out.println("Started generating timestamps for nodes");
+        Checkpoint checkpoint = new Checkpoint("nodesTimestamps.csv.checkpoint");
+        MatchingPipeline pipeline = MatchingPipeline.fromSystemProperties();
+        pipeline.addExporter(
+                (tid, result, writer) -> mapMatcher.writeNodeTimestamps(tid, result, MapMatcher.TimestampMode.ROUTING, writer),
+                checkpoint.open("nodesTimestamps.csv", MapMatcher.NODE_TIMESTAMPS_HEADER));
+        if (Boolean.getBoolean("mapmatcher.segments"))
+            pipeline.addExporter(mapMatcher::writeSegmentsWithoutEmptyEdges,
+                    checkpoint.open("segments.csv", MapMatcher.SEGMENTS_HEADER));
+        // the summary only covers the trajectories matched by this run, not those completed before a restart
+        EdgeSpeedAggregator speeds = EdgeSpeedAggregator.fromSystemProperties();
+        if (speeds != null)
+            pipeline.addAggregator((tid, result) -> mapMatcher.aggregateSpeeds(result, speeds));
+        try {
+            pipeline.run(reader, checkpoint::isCompleted, checkpoint::completed);
+        } catch (IOException | RuntimeException e) {
+            checkpoint.close();
+            throw e;
+        }
+        checkpoint.finish();
+        if (speeds != null)
+            mapMatcher.saveSpeedSummary(speeds, "speedSummary.csv", OutputFormat.CSV);
+        System.out.println(mapMatcher.getPathCache());
+        if (mapMatcher.getSnapCache() != null)
+            System.out.println(mapMatcher.getSnapCache());
+        System.out.print(metrics.getReport());
+        metrics.writeTo("metrics.txt");
 
     }
 
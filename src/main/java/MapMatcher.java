@@ -1,83 +1,362 @@
 import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
 import com.graphhopper.PathWrapper;
 import com.graphhopper.matching.EdgeMatch;
 import com.graphhopper.matching.GPXExtension;
 import com.graphhopper.matching.MapMatching;
 import com.graphhopper.matching.MatchResult;
 import com.graphhopper.routing.AlgorithmOptions;
+import com.graphhopper.routing.Dijkstra;
+import com.graphhopper.routing.Path;
+import com.graphhopper.routing.QueryGraph;
+import com.graphhopper.routing.util.AllEdgesIterator;
 import com.graphhopper.routing.util.CarFlagEncoder;
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.routing.util.EdgeFilter;
 import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.routing.util.TraversalMode;
 import com.graphhopper.routing.weighting.FastestWeighting;
 import com.graphhopper.routing.weighting.Weighting;
 import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.storage.index.LocationIndexTree;
+import com.graphhopper.storage.index.QueryResult;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.EdgeIteratorState;
 import com.graphhopper.util.Parameters;
+import com.graphhopper.util.exceptions.ConnectionNotFoundException;
+import com.graphhopper.util.exceptions.PointNotFoundException;
+import com.graphhopper.util.shapes.GHPoint;
 import com.graphhopper.util.shapes.GHPoint3D;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
 
 public class MapMatcher {
 
-    private static MapMatcher instance = new MapMatcher();
+    public static final String[] NODE_TIMESTAMPS_HEADER = {"tid", "nodeId", "lat", "lng", "timestamp", "osm_id"};
+    public static final ColumnType[] NODE_TIMESTAMPS_TYPES = {ColumnType.LONG, ColumnType.INT, ColumnType.DOUBLE, ColumnType.DOUBLE, ColumnType.LONG, ColumnType.LONG};
+    public static final String[] EDGES_HEADER = {"id", "latitude", "longitude", "order", "osm_id"};
+    public static final ColumnType[] EDGES_TYPES = {ColumnType.LONG, ColumnType.DOUBLE, ColumnType.DOUBLE, ColumnType.INT, ColumnType.LONG};
+    public static final String[] SEGMENTS_HEADER = {"trajId", "ledgeId", "timestamp", "speed", "osm_id"};
+    public static final ColumnType[] SEGMENTS_TYPES = {ColumnType.LONG, ColumnType.INT, ColumnType.LONG, ColumnType.DOUBLE, ColumnType.LONG};
+    public static final String[] SEGMENTS_WITH_EMPTY_EDGES_HEADER = {"id", "edge_id", "osm_id", "from", "to", "speed"};
+    public static final String[] SPEED_SUMMARY_HEADER = {"edge_id", "osm_id", "bucket_start", "count", "mean_speed",
+            "p50_speed", "p85_speed", "p95_speed", "travel_time"};
+    public static final ColumnType[] SPEED_SUMMARY_TYPES = {ColumnType.INT, ColumnType.LONG, ColumnType.LONG, ColumnType.INT,
+            ColumnType.DOUBLE, ColumnType.DOUBLE, ColumnType.DOUBLE, ColumnType.DOUBLE, ColumnType.DOUBLE};
+
+    private static final LongPredicate NOTHING_COMPLETED = tid -> false;
+    // meters around a route endpoint searched for the edge to start or end on
+    private static final double ROUTE_SNAP_RADIUS = 50;
 
     private MyGraphHopper hopper;
+    private RoutingMode routingMode;
+    private AlgorithmOptions algoOptions;
     private MapMatching mapMatching;
     private NodeAccess nodeAccess;
+    private PathCache pathCache;
+    private EdgeGeometryCache edgeGeometries;
+    private CachedLocationIndex snapCache;
+    private EdgeFilter edgeFilter;
+    private TrajectoryFilter filter;
+    private TrajectorySplitter splitter;
+    private PipelineMetrics metrics = PipelineMetrics.getInstance();
+    private final ThreadLocal<ExportScratch> scratch = ThreadLocal.withInitial(ExportScratch::new);
+    private final PathCache.Router router = this::routeNodes;
 
     public static MapMatcher getInstance() {
-        return instance;
+        return Holder.INSTANCE;
+    }
+
+    // loads the graph on the first getInstance, not when PrepareGraph or Coordinator use the static members
+    private static class Holder {
+        static final MapMatcher INSTANCE = new MapMatcher();
     }
 
     private MapMatcher() {
-        // import OpenStreetMap data
-        hopper = new MyGraphHopper();
-        hopper.setDataReaderFile(MapMatcher.class.getResource("fortaleza.osm.xml").getPath());
-        hopper.setGraphHopperLocation("tmp/hopper/");
-        hopper.setMinNetworkSize(200, 200);
-        CarFlagEncoder encoder = new CarFlagEncoder();
-        hopper.setEncodingManager(new EncodingManager(encoder));
-        hopper.getCHFactoryDecorator().setEnabled(false);
-        hopper.importOrLoad();
+        routingMode = RoutingMode.fromSystemProperty();
+        hopper = createHopper(routingMode);
+        String preparedGraph = System.getProperty("mapmatcher.preparedGraph");
+        if (preparedGraph != null) {
+            // map the graph written by PrepareGraph read-only, so its pages are shared by all JVMs using it
+            hopper.setMemoryMapped();
+            hopper.setAllowWrites(false);
+            if (!hopper.load(preparedGraph))
+                throw new IllegalStateException("No prepared graph found in " + preparedGraph);
+        } else {
+            // import OpenStreetMap data
+            hopper.setDataReaderFile(getOsmFile());
+            hopper.setGraphHopperLocation(getGraphLocation());
+            hopper.importOrLoad();
+        }
+        FlagEncoder encoder = hopper.getEncodingManager().getEncoder("car");
+        // 8 bytes per edge on the heap, so the exporters resolve OSM ways without DataAccess reads
+        if (Boolean.parseBoolean(System.getProperty("mapmatcher.osmWaysInMemory", "true")))
+            hopper.loadOSMWaysInMemory();
 
         nodeAccess = hopper.getGraphHopperStorage().getNodeAccess();
+        pathCache = new PathCache(Integer.getInteger("mapmatcher.pathCacheSize", 100_000));
+        edgeGeometries = new EdgeGeometryCache(hopper.getGraphHopperStorage());
+        filter = TrajectoryFilter.fromSystemProperties();
+        splitter = TrajectorySplitter.fromSystemProperties();
+        edgeFilter = new DefaultEdgeFilter(encoder);
+        int snapCacheCells = Integer.getInteger("mapmatcher.snapCache.cells", 0);
+        if (snapCacheCells > 0)
+            snapCache = new CachedLocationIndex(hopper.getGraphHopperStorage(), (LocationIndexTree) hopper.getLocationIndex(),
+                    snapCacheCells, Double.parseDouble(System.getProperty("mapmatcher.snapCache.cellSize", "0.0005")));
 
         String algorithm = Parameters.Algorithms.DIJKSTRA_BI;
         Weighting weighting = new FastestWeighting(encoder);
-        AlgorithmOptions algoOptions = new AlgorithmOptions(algorithm, weighting);
-        mapMatching = new MapMatching(hopper, algoOptions);
+        algoOptions = new AlgorithmOptions(algorithm, weighting);
+        // the matching itself needs flexible routing on the query graph, only the post-match paths use CH or LM
+        algoOptions.getHints().put(Parameters.CH.DISABLE, true);
+        algoOptions.getHints().put(Parameters.Landmark.DISABLE, true);
+        mapMatching = createMapMatching();
+    }
+
+    static String getOsmFile() {
+        String osmFile = System.getProperty("mapmatcher.osmFile");
+        if (osmFile == null)
+            osmFile = MapMatcher.class.getResource("fortaleza.osm.xml").getPath();
+        return osmFile;
+    }
+
+    static String getGraphLocation() {
+        return System.getProperty("mapmatcher.graphLocation", "tmp/hopper/");
+    }
+
+    /**
+     * GraphHopper configured for the car graph used by the matcher, without any data loaded yet. CH and LM
+     * preparations are enabled according to the routing mode, but can still be disabled per request.
+     */
+    static MyGraphHopper createHopper(RoutingMode routingMode) {
+        MyGraphHopper hopper = new MyGraphHopper();
+        hopper.setMinNetworkSize(200, 200);
+        hopper.setEncodingManager(new EncodingManager(new CarFlagEncoder()));
+        hopper.getCHFactoryDecorator().setEnabled(routingMode == RoutingMode.CH);
+        hopper.getCHFactoryDecorator().setDisablingAllowed(true);
+        if (routingMode == RoutingMode.CH)
+            hopper.getCHFactoryDecorator().addWeighting("fastest");
+        hopper.getLMFactoryDecorator().setEnabled(routingMode == RoutingMode.LM);
+        hopper.getLMFactoryDecorator().setDisablingAllowed(true);
+        if (routingMode == RoutingMode.LM)
+            hopper.getLMFactoryDecorator().addWeighting("fastest");
+        return hopper;
+    }
+
+    /**
+     * Each MapMatching keeps its own query graph and location index wrapper, so it must not be shared
+     * between threads. The underlying GraphHopperStorage is read-only and shared by all of them, and so is the snap
+     * cache, which replaces the location index wrapper when it is enabled.
+     */
+    MapMatching createMapMatching() {
+        MapMatching mapMatching = new MapMatching(hopper, algoOptions);
+        if (snapCache != null) {
+            // MapMatching creates its location index itself and offers no way to replace it
+            try {
+                Field locationIndex = MapMatching.class.getDeclaredField("locationIndex");
+                locationIndex.setAccessible(true);
+                locationIndex.set(mapMatching, snapCache);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot install the snap cache", e);
+            }
+        }
+        return mapMatching;
+    }
+
+    /**
+     * Edges of the fastest route between two tower nodes in driving direction, empty between a node and itself, null
+     * if there is no route.
+     */
+    List<EdgeIteratorState> routeEdges(int fromNode, int toNode) {
+        if (fromNode == toNode)
+            return Collections.emptyList();
+        Path path = new Dijkstra(hopper.getGraphHopperStorage(), algoOptions.getWeighting(), TraversalMode.NODE_BASED)
+                .calcPath(fromNode, toNode);
+        return path.isFound() ? path.calcEdges() : null;
+    }
+
+    public PathCache getPathCache() {
+        return pathCache;
+    }
+
+    /**
+     * Cache of the candidate edges around the GPS points, enabled with {@code -Dmapmatcher.snapCache.cells}, the
+     * maximum number of cached cells, and {@code mapmatcher.snapCache.cellSize} in degrees; null when disabled.
+     */
+    public CachedLocationIndex getSnapCache() {
+        return snapCache;
+    }
+
+    /**
+     * Filter applied to every trajectory, in place, before it is matched; null to match all points.
+     */
+    public void setTrajectoryFilter(TrajectoryFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Splitter that cuts trajectories at gaps and retries the pieces that fail to match; null to match whole
+     * trajectories. Pieces are reported under sub-ids, see {@link TrajectorySplitter}.
+     */
+    public void setTrajectorySplitter(TrajectorySplitter splitter) {
+        this.splitter = splitter;
     }
 
     public Map<Long, MatchResult> run(List<Trajectory> trajectories) {
         Map<Long, MatchResult> map = new HashMap<>();
         for (Trajectory t : trajectories) {
+            forEachPiece(t, piece -> match(mapMatching, piece, NOTHING_COMPLETED, map::put));
+        }
+        return map;
+    }
+
+    /**
+     * Match trajectories on a pool of workers, each one with its own MapMatching instance.
+     *
+     * @param trajectories
+     * @param workers number of matching threads
+     * @return thread-safe map of trajectory id to match result
+     */
+    public Map<Long, MatchResult> run(List<Trajectory> trajectories, int workers) {
+        Map<Long, MatchResult> map = new ConcurrentHashMap<>();
+        run(trajectories::forEach, workers, map::put);
+        return map;
+    }
+
+    /**
+     * Match trajectories while they are being read. The reader is throttled when all workers are busy, so memory
+     * stays bounded by the trajectories in flight. The consumer is called from the worker threads.
+     *
+     * @param reader
+     * @param workers number of matching threads
+     * @param consumer receives the trajectory id and its match result
+     */
+    public void run(TrajectoryReader reader, int workers, BiConsumer<Long, MatchResult> consumer) {
+        run(reader::readTrajectories, workers, consumer);
+    }
+
+    /**
+     * Match trajectories while they are being read, skipping those a previous run completed.
+     *
+     * @param completed tells whether a trajectory, or piece of one, was already completed, by its (sub-)id
+     */
+    public void run(TrajectoryReader reader, int workers, LongPredicate completed, BiConsumer<Long, MatchResult> consumer) {
+        run(reader::readTrajectories, workers, completed, consumer);
+    }
+
+    /**
+     * Match the trajectories the source passes to its sink. The source runs on the calling thread, which also matches
+     * when all workers are busy.
+     */
+    void run(Consumer<Consumer<Trajectory>> source, int workers, BiConsumer<Long, MatchResult> consumer) {
+        run(source, workers, NOTHING_COMPLETED, consumer);
+    }
+
+    private void run(Consumer<Consumer<Trajectory>> source, int workers, LongPredicate completed,
+                     BiConsumer<Long, MatchResult> consumer) {
+        ThreadLocal<MapMatching> workerMapMatching = ThreadLocal.withInitial(this::createMapMatching);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(2 * workers), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            // the pieces of a split trajectory are matched in parallel, after a failure nothing new is read or matched
+            source.accept(t -> {
+                if (failure.get() != null)
+                    throw failure.get();
+                forEachPiece(t, piece -> executor.execute(() -> {
+                    if (failure.get() != null) return;
+                    try {
+                        match(workerMapMatching.get(), piece, completed, consumer);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }));
+            });
+        } finally {
+            executor.shutdown();
             try {
-                map.put((long) t.getId(), mapMatching.doWork(t.getPoints()));
-            } catch (IllegalArgumentException e) {
-                System.out.println("No matching for trajectory");
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
             }
         }
-        return map;
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+    private void forEachPiece(Trajectory t, Consumer<TrajectorySplitter.Piece> action) {
+        if (filter != null)
+            filter.apply(t);
+        if (splitter == null)
+            action.accept(new TrajectorySplitter.Piece(t, -1));
+        else
+            splitter.split(t).forEach(action);
+    }
+
+    /**
+     * Match a piece and, if that fails and a splitter is set, match the halves of it instead.
+     */
+    private void match(MapMatching mapMatching, TrajectorySplitter.Piece piece, LongPredicate completed,
+                       BiConsumer<Long, MatchResult> consumer) {
+        if (completed.test(piece.getSubId()))
+            return;
+        Trajectory t = piece.getTrajectory();
+        long start = System.nanoTime();
+        MatchResult result = null;
+        try {
+            result = mapMatching.doWork(t.getPoints());
+        } catch (IllegalArgumentException e) {
+            if (splitter == null || !splitter.canHalve(piece))
+                metrics.countFailedMatch();
+        } finally {
+            metrics.recordLatency(PipelineMetrics.Stage.MATCH, System.nanoTime() - start);
+        }
+        if (result == null) {
+            if (splitter != null && splitter.canHalve(piece)) {
+                for (TrajectorySplitter.Piece half : splitter.halve(piece))
+                    match(mapMatching, half, completed, consumer);
+            }
+            return;
+        }
+        metrics.countMatched(t.size(), System.nanoTime() - start);
+        consumer.accept(piece.getSubId(), result);
     }
 
-    private class RelevantPointIterator implements Iterator<GPXExtension> {
+    /**
+     * Iterates over the first and last point of every non-empty edge. Reset for each trajectory, so one instance per
+     * thread is enough.
+     */
+    private static class RelevantPointIterator implements Iterator<GPXExtension> {
 
-        private Iterator<EdgeMatch> it;
+        private List<EdgeMatch> matches;
+        private int nextMatch;
         private EdgeMatch current;
-        private int currentEdgePosition = 0;
-        private int nextEdgePosition = 0;
+        private int currentEdgePosition;
+        private int nextEdgePosition;
         private GPXExtension nextPoint;
 
-        public RelevantPointIterator(List<EdgeMatch> matches) {
-            it = matches.iterator();
-            current = it.next();
-            while(it.hasNext() && current.isEmpty()) {
-                current = it.next();
+        public RelevantPointIterator reset(List<EdgeMatch> matches) {
+            this.matches = matches;
+            nextMatch = 0;
+            currentEdgePosition = 0;
+            nextEdgePosition = 0;
+            current = matches.get(nextMatch++);
+            while(nextMatch < matches.size() && current.isEmpty()) {
+                current = matches.get(nextMatch++);
                 nextEdgePosition++;
             }
             nextPoint = current.isEmpty() ? null : current.getGpxExtensions().get(0);
+            return this;
         }
 
         public int getCurrentEdgePosition() {
@@ -96,12 +375,12 @@ public class MapMatcher {
 
             List<GPXExtension> gpxExtensions = current.getGpxExtensions();
             if (nextPoint.equals(gpxExtensions.get(gpxExtensions.size()-1))) {
-                if (!it.hasNext()) nextPoint = null;
+                if (nextMatch == matches.size()) nextPoint = null;
                 else {
-                    current = it.next();
+                    current = matches.get(nextMatch++);
                     nextEdgePosition++;
-                    while(it.hasNext() && current.isEmpty()) {
-                        current = it.next();
+                    while(nextMatch < matches.size() && current.isEmpty()) {
+                        current = matches.get(nextMatch++);
                         nextEdgePosition++;
                     }
                     if (current.isEmpty()) nextPoint = null;
@@ -113,64 +392,252 @@ public class MapMatcher {
         }
     }
 
+    /**
+     * Buffers of the exporters, reused for every trajectory a thread exports, so exporting a trajectory whose routes
+     * are cached doesn't allocate. Arrays only grow and are longer than the current trajectory needs.
+     */
+    private static class ExportScratch {
+
+        final RelevantPointIterator points = new RelevantPointIterator();
+        final SegmentRowWriter segmentRows = new SegmentRowWriter();
+        final RouteEnd routeFrom = new RouteEnd();
+        final RouteEnd routeTo = new RouteEnd();
+        int[] edgeIds = new int[0];
+        long[] osmWays = new long[0];
+        double[] nodePositions = new double[0];
+        boolean[] afterGap = new boolean[0];
+        double[] pointPositions = new double[0];
+        long[] pointTimes = new long[0];
+
+        void ensureEdges(int edges) {
+            if (edgeIds.length >= edges + 1) return;
+            int length = Math.max(edges + 1, 2 * edgeIds.length);
+            edgeIds = new int[length];
+            osmWays = new long[length];
+            nodePositions = new double[length];
+            afterGap = new boolean[length];
+        }
+
+        void ensurePoints(int points) {
+            if (pointPositions.length >= points) return;
+            int length = Math.max(points, 2 * pointPositions.length);
+            pointPositions = new double[length];
+            pointTimes = new long[length];
+        }
+    }
+
+    /**
+     * Writes the rows of {@link #writeSegmentsWithoutEmptyEdges}, set up for one trajectory at a time.
+     */
+    private static class SegmentRowWriter implements SegmentVisitor<IOException> {
+
+        RecordWriter writer;
+        long trajId;
+        long[] osmWays;
+
+        @Override
+        public void visit(int edgeIndex, EdgeMatch edgeMatch, GPXExtension point, double speed) throws IOException {
+            writer.writeLong(trajId);
+            writer.writeInt(edgeMatch.getEdgeState().getEdge()); // output edge_id
+            writer.writeLong(point.getEntry().getTime());
+            writer.writeDouble(speed);
+            writer.writeLong(osmWays[edgeIndex]);
+            writer.endRecord();
+        }
+    }
+
+    /**
+     * Algorithm of the point to point routes computed after matching, for speeds and timestamps. Selected with
+     * {@code -Dmapmatcher.routing=dijkstra|ch|lm}; CH and LM need their preparation in the graph folder, so a graph
+     * imported in one mode must be imported again for another.
+     */
+    public enum RoutingMode {
+        /** unidirectional Dijkstra on the plain graph, no preparation */
+        DIJKSTRA,
+        /** bidirectional Dijkstra on the Contraction Hierarchies of the fastest weighting */
+        CH,
+        /** bidirectional A* with landmark (ALT) lower bounds */
+        LM;
+
+        static RoutingMode fromSystemProperty() {
+            return valueOf(System.getProperty("mapmatcher.routing", "dijkstra").toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * How node timestamps are estimated from the matched points.
+     */
+    public enum TimestampMode {
+        /** route from each node to the next matched point and divide by the speed between points */
+        ROUTING,
+        /** interpolate along the matched edges, using edge lengths and the offsets of the snapped points */
+        MATCHED_EDGES
+    }
+
     public void generateNodeTimestamps(Map<Long, MatchResult> mapMatchResult, String filePath) {
+        generateNodeTimestamps(mapMatchResult, filePath, TimestampMode.ROUTING);
+    }
+
+    public void generateNodeTimestamps(Map<Long, MatchResult> mapMatchResult, String filePath, TimestampMode mode) {
+        generateNodeTimestamps(mapMatchResult, filePath, mode, OutputFormat.CSV);
+    }
+
+    public void generateNodeTimestamps(Map<Long, MatchResult> mapMatchResult, String filePath, TimestampMode mode,
+                                       OutputFormat format) {
         System.out.println("Started generating timestamps for nodes");
-        StringBuilder builder = new StringBuilder();
-        builder.append("tid;nodeId;lat;lng;timestamp\n");
-
-        for (Entry<Long, MatchResult> mapEntry : mapMatchResult.entrySet()) {
-            List<EdgeMatch> matches = mapEntry.getValue().getEdgeMatches();
-            long tid = mapEntry.getKey();
-            int nodeToProcess = 0;
-            RelevantPointIterator it = new RelevantPointIterator(matches);
-            GPXExtension lastPoint = it.next(), current = null;
-            while(it.hasNext()) {
-                current = it.next();
-                double currentLat = current.getQueryResult().getQueryPoint().getLat();
-                double currentLng = current.getQueryResult().getQueryPoint().getLon();
-                double speed = getSpeedMS(lastPoint, current);
-
-                boolean hasProblems = false;
-                while (nodeToProcess < it.getCurrentEdgePosition()) {
-                    int nodeId = matches.get(nodeToProcess).getEdgeState().getBaseNode();
-                    double lat = nodeAccess.getLatitude(nodeId);
-                    double lng = nodeAccess.getLongitude(nodeId);
-                    PathWrapper path = getPath(lat, lng, currentLat, currentLng);
-                    if (path.hasErrors()) {
-                        hasProblems = true;
-                        System.err.println("(" + lat + ", " + lng + ") -> (" + current.getEntry().getLat() + ", " + current.getEntry().getLon() + ")");
-                        break;
-                    }
-                    double distance = path.getDistance();
-                    if (distance == 0) System.out.println(String.format("d: %.2f, v: %.2f", distance, speed));
-                    long estimatedTimestamp = lastPoint.getEntry().getTime() - (long) (distance / speed);
-                    builder.append(generateLine(tid, nodeId, lat, lng, estimatedTimestamp));
-                    nodeToProcess++;
-                }
-                if (!hasProblems)
-                    lastPoint = current;
+        try (RecordWriter writer = format.open(filePath, NODE_TIMESTAMPS_HEADER, NODE_TIMESTAMPS_TYPES)) {
+            for (Entry<Long, MatchResult> mapEntry : mapMatchResult.entrySet()) {
+                writeNodeTimestamps(mapEntry.getKey(), mapEntry.getValue(), mode, writer);
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            if (current != null) {
-                double currentLat = current.getQueryResult().getQueryPoint().getLat();
-                double currentLng = current.getQueryResult().getQueryPoint().getLon();
-                double speed = getSpeedMS(lastPoint, current);
-                int nodeId = matches.get(matches.size()-1).getEdgeState().getAdjNode();
+    /**
+     * Write the node timestamps of a single trajectory in format of tid;nodeId;lat;lng;timestamp
+     *
+     * @param tid
+     * @param matchResult
+     * @param mode
+     * @param writer
+     * @throws IOException
+     */
+    public void writeNodeTimestamps(long tid, MatchResult matchResult, TimestampMode mode, RecordWriter writer) throws IOException {
+        long start = System.nanoTime();
+        try {
+            doWriteNodeTimestamps(tid, matchResult, mode, writer);
+        } finally {
+            metrics.recordLatency(PipelineMetrics.Stage.WRITE, System.nanoTime() - start);
+        }
+    }
+
+    private void doWriteNodeTimestamps(long tid, MatchResult matchResult, TimestampMode mode, RecordWriter writer) throws IOException {
+        List<EdgeMatch> matches = matchResult.getEdgeMatches();
+        if (mode == TimestampMode.ROUTING)
+            writeRoutedNodeTimestamps(tid, matches, writer);
+        else
+            writeInterpolatedNodeTimestamps(tid, matches, writer);
+    }
+
+    private void writeRoutedNodeTimestamps(long tid, List<EdgeMatch> matches, RecordWriter writer) throws IOException {
+        ExportScratch scratch = this.scratch.get();
+        long[] osmWays = getOSMWays(matches, scratch);
+        int nodeToProcess = 0;
+        RelevantPointIterator it = scratch.points.reset(matches);
+        GPXExtension lastPoint = it.next(), current = null;
+        while(it.hasNext()) {
+            current = it.next();
+            double speed = getSpeedMS(lastPoint, current);
+
+            boolean hasProblems = false;
+            while (nodeToProcess < it.getCurrentEdgePosition()) {
+                int nodeId = matches.get(nodeToProcess).getEdgeState().getBaseNode();
                 double lat = nodeAccess.getLatitude(nodeId);
                 double lng = nodeAccess.getLongitude(nodeId);
-                PathWrapper path = getPath(currentLat, currentLng, lat, lng);
-                if (!path.hasErrors()) {
-                    double distance = path.getDistance();
-                    if (distance == 0) System.out.println(String.format("d: %.2f, v: %.2f", distance, speed));
-                    long estimatedTimestamp = lastPoint.getEntry().getTime() + (long) (distance / speed);
-                    builder.append(generateLine(tid, nodeId, lat, lng, estimatedTimestamp));
-                } else
-                    System.err.println("lat: " + current.getEntry().getLat() + "lng: " + current.getEntry().getLon() + " -> " + "lat: " + lat + "lng: " + lng);
+                double distance = getDistance(nodeId, current.getQueryResult());
+                if (Double.isNaN(distance)) {
+                    hasProblems = true;
+                    metrics.countPathError();
+                    break;
+                }
+                if (distance == 0) metrics.countZeroDistanceSegment();
+                long estimatedTimestamp = lastPoint.getEntry().getTime() - (long) (distance / speed);
+                writeNodeTimestamp(writer, tid, nodeId, lat, lng, estimatedTimestamp, osmWays[nodeToProcess]);
+                nodeToProcess++;
+            }
+            if (!hasProblems)
+                lastPoint = current;
+        }
+
+        if (current != null) {
+            double speed = getSpeedMS(lastPoint, current);
+            int nodeId = matches.get(matches.size()-1).getEdgeState().getAdjNode();
+            double lat = nodeAccess.getLatitude(nodeId);
+            double lng = nodeAccess.getLongitude(nodeId);
+            double distance = getDistance(current.getQueryResult(), nodeId);
+            if (!Double.isNaN(distance)) {
+                if (distance == 0) metrics.countZeroDistanceSegment();
+                long estimatedTimestamp = lastPoint.getEntry().getTime() + (long) (distance / speed);
+                writeNodeTimestamp(writer, tid, nodeId, lat, lng, estimatedTimestamp, osmWays[matches.size() - 1]);
+            } else
+                metrics.countPathError();
+        }
+    }
+
+    /**
+     * Estimate the timestamp of every node on the matched route by linear interpolation between the matched points
+     * around it. Positions are distances from the start of the route, so no routing is needed; only a disconnected
+     * pair of consecutive edges makes a node position unknown.
+     */
+    private void writeInterpolatedNodeTimestamps(long tid, List<EdgeMatch> matches, RecordWriter writer) throws IOException {
+        int edges = matches.size();
+        ExportScratch scratch = this.scratch.get();
+        long[] osmWays = getOSMWays(matches, scratch);
+        // nodePosition[i] is the position of the base node of edge i, nodePosition[edges] the adj node of the last one
+        double[] nodePosition = scratch.nodePositions;
+        boolean[] afterGap = scratch.afterGap;
+        nodePosition[0] = 0;
+        afterGap[edges] = false;
+        int points = 0;
+        for (int i = 0; i < edges; i++) {
+            EdgeIteratorState edge = matches.get(i).getEdgeState();
+            afterGap[i] = i > 0 && matches.get(i - 1).getEdgeState().getAdjNode() != edge.getBaseNode();
+            nodePosition[i + 1] = nodePosition[i] + edge.getDistance();
+            points += matches.get(i).getGpxExtensions().size();
+        }
+        if (points == 0) return;
+
+        scratch.ensurePoints(points);
+        double[] pointPosition = scratch.pointPositions;
+        long[] pointTime = scratch.pointTimes;
+        int p = 0;
+        for (int i = 0; i < edges; i++) {
+            EdgeIteratorState edge = matches.get(i).getEdgeState();
+            List<GPXExtension> gpxExtensions = matches.get(i).getGpxExtensions();
+            for (int g = 0; g < gpxExtensions.size(); g++) {
+                GPXExtension gpx = gpxExtensions.get(g);
+                GHPoint snapped = gpx.getQueryResult().getSnappedPoint();
+                double offset = Math.min(edgeGeometries.getOffset(edge, snapped.getLat(), snapped.getLon()), edge.getDistance());
+                pointPosition[p] = nodePosition[i] + offset;
+                pointTime[p] = gpx.getEntry().getTime();
+                p++;
             }
+        }
 
+        int next = 0;
+        for (int i = 0; i <= edges; i++) {
+            int nodeId = i < edges ? matches.get(i).getEdgeState().getBaseNode() : matches.get(edges - 1).getEdgeState().getAdjNode();
+            double lat = nodeAccess.getLatitude(nodeId);
+            double lng = nodeAccess.getLongitude(nodeId);
+            if (afterGap[i]) {
+                metrics.countPathError();
+                continue;
+            }
+            while (next < points && pointPosition[next] < nodePosition[i])
+                next++;
+            // interpolate between the points around the node, or extrapolate from the first or last two points
+            int to = Math.max(1, Math.min(next, points - 1));
+            int from = to - 1;
+            long estimatedTimestamp;
+            if (points == 1 || pointPosition[to] <= pointPosition[from])
+                estimatedTimestamp = pointTime[Math.min(next, points - 1)];
+            else
+                estimatedTimestamp = pointTime[from] + (long) ((nodePosition[i] - pointPosition[from])
+                        / (pointPosition[to] - pointPosition[from]) * (pointTime[to] - pointTime[from]));
+            writeNodeTimestamp(writer, tid, nodeId, lat, lng, estimatedTimestamp, osmWays[Math.min(i, edges - 1)]);
         }
+    }
 
-        saveOnFile(filePath, builder);
+    private static void writeNodeTimestamp(RecordWriter writer, long tid, int nodeId, double lat, double lng,
+                                           long timestamp, long osmWay) throws IOException {
+        writer.writeLong(tid);
+        writer.writeInt(nodeId);
+        writer.writeDouble(lat);
+        writer.writeDouble(lng);
+        writer.writeLong(timestamp);
+        writer.writeLong(osmWay);
+        writer.endRecord();
     }
 
     /**
@@ -180,197 +647,529 @@ public class MapMatcher {
      * @param filePath
      */
     public void saveMapMatchingEdges(Map<Long, MatchResult> mapMatchResult, String filePath) {
-        StringBuilder builder = new StringBuilder();
-
-        builder.append("id;latitude;longitude;order\n");
+        saveMapMatchingEdges(mapMatchResult, filePath, OutputFormat.CSV);
+    }
 
-        for (Entry<Long, MatchResult> mapEntry : mapMatchResult.entrySet()) {
-            int order = 1;
-            for (EdgeMatch edgeMatch : mapEntry.getValue().getEdgeMatches()) {
-                int nodeId = edgeMatch.getEdgeState().getBaseNode();
-                builder.append(generateLine(mapEntry.getKey(), nodeAccess.getLatitude(nodeId), nodeAccess.getLongitude(nodeId), order++));
+    public void saveMapMatchingEdges(Map<Long, MatchResult> mapMatchResult, String filePath, OutputFormat format) {
+        try (RecordWriter writer = format.open(filePath, EDGES_HEADER, EDGES_TYPES)) {
+            for (Entry<Long, MatchResult> mapEntry : mapMatchResult.entrySet()) {
+                writeMapMatchingEdges(mapEntry.getKey(), mapEntry.getValue(), writer);
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void writeMapMatchingEdges(long trajId, MatchResult matchResult, RecordWriter writer) throws IOException {
+        long start = System.nanoTime();
+        try {
+            doWriteMapMatchingEdges(trajId, matchResult, writer);
+        } finally {
+            metrics.recordLatency(PipelineMetrics.Stage.WRITE, System.nanoTime() - start);
         }
+    }
 
-        saveOnFile(filePath, builder);
+    private void doWriteMapMatchingEdges(long trajId, MatchResult matchResult, RecordWriter writer) throws IOException {
+        long[] osmWays = getOSMWays(matchResult.getEdgeMatches(), scratch.get());
+        int order = 1;
+        for (EdgeMatch edgeMatch : matchResult.getEdgeMatches()) {
+            int nodeId = edgeMatch.getEdgeState().getBaseNode();
+            writer.writeLong(trajId);
+            writer.writeDouble(nodeAccess.getLatitude(nodeId));
+            writer.writeDouble(nodeAccess.getLongitude(nodeId));
+            writer.writeInt(order);
+            writer.writeLong(osmWays[order - 1]);
+            writer.endRecord();
+            order++;
+        }
     }
 
     public void saveMapMatchingSegmentsWithoutEmptyEdges(Map<Long, MatchResult> mapMatchResult, String filePath) {
+        saveMapMatchingSegmentsWithoutEmptyEdges(mapMatchResult, filePath, OutputFormat.CSV);
+    }
 
-        StringBuilder builder = new StringBuilder();
-        EdgeMatch previousEdge = null;
-        double speed;
+    public void saveMapMatchingSegmentsWithoutEmptyEdges(Map<Long, MatchResult> mapMatchResult, String filePath,
+                                                         OutputFormat format) {
+        try (RecordWriter writer = format.open(filePath, SEGMENTS_HEADER, SEGMENTS_TYPES)) {
+            // iterate over all trajectories
+            for (Entry<Long, MatchResult> mapEntry : mapMatchResult.entrySet()) {
+                writeSegmentsWithoutEmptyEdges(mapEntry.getKey(), mapEntry.getValue(), writer);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        builder.append("trajId;ledgeId;timestamp;speed\n");
+    public void writeSegmentsWithoutEmptyEdges(long trajId, MatchResult matchResult, RecordWriter writer) throws IOException {
+        long start = System.nanoTime();
+        try {
+            doWriteSegmentsWithoutEmptyEdges(trajId, matchResult, writer);
+        } finally {
+            metrics.recordLatency(PipelineMetrics.Stage.WRITE, System.nanoTime() - start);
+        }
+    }
+
+    private void doWriteSegmentsWithoutEmptyEdges(long trajId, MatchResult matchResult, RecordWriter writer) throws IOException {
+        List<EdgeMatch> matches = matchResult.getEdgeMatches();
+        ExportScratch scratch = this.scratch.get();
+        SegmentRowWriter rows = scratch.segmentRows;
+        rows.writer = writer;
+        rows.trajId = trajId;
+        rows.osmWays = getOSMWays(matches, scratch);
+        try {
+            forEachSegment(matches, rows);
+        } finally {
+            rows.writer = null;
+        }
+    }
 
-        // iterate over all trajectories
-        for (Entry<Long, MatchResult> mapEntry : mapMatchResult.entrySet()) {
-            GPXExtension previousGPS = null;
-            Long trajId = mapEntry.getKey();// output traj_id
+    /**
+     * Receives the points of a matched trajectory that end a segment on a connected edge, with the speed from the
+     * previous point.
+     */
+    interface SegmentVisitor<E extends Exception> {
+        void visit(int edgeIndex, EdgeMatch edgeMatch, GPXExtension point, double speed) throws E;
+    }
 
-            // for each edge in trajectory map-matching
-            for (EdgeMatch edgeMatch : mapEntry.getValue().getEdgeMatches()) {
+    /**
+     * Visit the segments written by {@link #writeSegmentsWithoutEmptyEdges}: every point after the first one on the
+     * same edge, or on an edge connected to the edge of the previous point. An edge without points breaks the chain.
+     */
+    private <E extends Exception> void forEachSegment(List<EdgeMatch> matches, SegmentVisitor<E> visitor) throws E {
+        EdgeMatch previousEdge = null;
+        GPXExtension previousGPS = null;
 
-                int edgeId = edgeMatch.getEdgeState().getEdge(); // output edge_id
+        // for each edge in trajectory map-matching
+        for (int i = 0; i < matches.size(); i++) {
+            EdgeMatch edgeMatch = matches.get(i);
 
-                if(edgeMatch.isEmpty()) {
-                    previousGPS = null;
-                }
-                // iterate over points on the edge
-                for (GPXExtension gpsExtension : edgeMatch.getGpxExtensions()) {
-                    if (previousGPS == null) {
-                        previousGPS = gpsExtension;
-                    } else if (previousEdge.equals(edgeMatch) || previousEdge.getEdgeState().getAdjNode() == edgeMatch.getEdgeState().getBaseNode()) {
-                        speed = getSpeedMS(previousGPS, gpsExtension);
-                        builder.append(generateLine(trajId, edgeId, gpsExtension.getEntry().getTime(), speed));
-                    }
+            if(edgeMatch.isEmpty()) {
+                previousGPS = null;
+            }
+            // iterate over points on the edge
+            List<GPXExtension> gpxExtensions = edgeMatch.getGpxExtensions();
+            for (int g = 0; g < gpxExtensions.size(); g++) {
+                GPXExtension gpsExtension = gpxExtensions.get(g);
+                if (previousGPS == null) {
                     previousGPS = gpsExtension;
-                    previousEdge = edgeMatch;
+                } else if (previousEdge.equals(edgeMatch) || previousEdge.getEdgeState().getAdjNode() == edgeMatch.getEdgeState().getBaseNode()) {
+                    visitor.visit(i, edgeMatch, gpsExtension, getSpeedMS(previousGPS, gpsExtension));
                 }
+                previousGPS = gpsExtension;
+                previousEdge = edgeMatch;
             }
         }
+    }
 
-        saveOnFile(filePath, builder);
+    /**
+     * Add the speeds of the segments of a matched trajectory to the aggregator, the same speeds
+     * {@link #writeSegmentsWithoutEmptyEdges} writes.
+     */
+    public void aggregateSpeeds(MatchResult matchResult, EdgeSpeedAggregator aggregator) {
+        forEachSegment(matchResult.getEdgeMatches(), (i, edgeMatch, gpsExtension, speed) ->
+                aggregator.add(edgeMatch.getEdgeState().getEdge(), gpsExtension.getEntry().getTime(), speed));
+    }
+
+    /**
+     * Save the aggregated speeds in format of edge_id;osm_id;bucket_start;count;mean_speed;p50_speed;p85_speed;
+     * p95_speed;travel_time. Speeds are in m/s and the travel time, edge length over mean speed, in seconds. If the
+     * mean speed is 0, only standing taxis were seen in the bucket and the travel time is unknown: it is written as NaN,
+     * "NaN" in CSV, instead of an infinite time.
+     */
+    public void saveSpeedSummary(EdgeSpeedAggregator aggregator, String filePath, OutputFormat format) throws IOException {
+        // resolve every edge once before writing: OSM ways in one batch, lengths in one pass over the edges
+        int[] edgeIds = aggregator.getEdgeIds();
+        ExportScratch buffers = scratch.get();
+        buffers.ensureEdges(edgeIds.length);
+        long[] osmWays = buffers.osmWays;
+        hopper.getOSMWays(edgeIds, edgeIds.length, osmWays);
+        double[] lengths = new double[edgeIds.length];
+        AllEdgesIterator edges = hopper.getGraphHopperStorage().getAllEdges();
+        int e = 0;
+        while (e < edgeIds.length && edges.next()) {
+            while (e < edgeIds.length && edgeIds[e] < edges.getEdge())
+                e++;
+            if (e < edgeIds.length && edgeIds[e] == edges.getEdge())
+                lengths[e++] = edges.getDistance();
+        }
+
+        try (RecordWriter writer = format.open(filePath, SPEED_SUMMARY_HEADER, SPEED_SUMMARY_TYPES)) {
+            aggregator.forEach((edgeId, bucketStart, count, meanSpeed, percentileSpeeds) -> {
+                int edge = Arrays.binarySearch(edgeIds, edgeId);
+                writer.writeInt(edgeId);
+                writer.writeLong(osmWays[edge]);
+                writer.writeLong(bucketStart);
+                writer.writeInt(count);
+                writer.writeDouble(meanSpeed);
+                for (double speed : percentileSpeeds)
+                    writer.writeDouble(speed);
+                writer.writeDouble(meanSpeed > 0 ? lengths[edge] / meanSpeed : Double.NaN);
+                writer.endRecord();
+            });
+        }
     }
 
     //TODO refactoring
     public void saveMapMatchingSegmentsWithEmpyEdges(Map<Long, MatchResult> mapMatchResult, String filePath) throws IOException {
-        FileWriter writer = new FileWriter(new File(filePath));
-        StringBuilder builder = new StringBuilder();
+        try (RecordWriter writer = new CsvRecordWriter(filePath, SEGMENTS_WITH_EMPTY_EDGES_HEADER)) {
+            // iterate over all trajectories
+            for (Entry<Long, MatchResult> mapEntry : mapMatchResult.entrySet()) {
+                writeSegmentsWithEmptyEdges(mapEntry.getKey(), mapEntry.getValue(), writer);
+            }
+        }
+    }
+
+    public void writeSegmentsWithEmptyEdges(long trajId, MatchResult matchResult, RecordWriter writer) throws IOException {
+        long start = System.nanoTime();
+        try {
+            doWriteSegmentsWithEmptyEdges(trajId, matchResult, writer);
+        } finally {
+            metrics.recordLatency(PipelineMetrics.Stage.WRITE, System.nanoTime() - start);
+        }
+    }
+
+    private void doWriteSegmentsWithEmptyEdges(long trajId, MatchResult matchResult, RecordWriter writer) throws IOException {
         List<EdgeMatch> edgesWithoutPoints = new ArrayList<>();
         EdgeMatch previousEdge = null;
+        GPXExtension previousGPS = null;
         long timestamp, timestamp2;
         double speed;
+        double totalDelta = 0;
+        List<EdgeMatch> matches = matchResult.getEdgeMatches();
+        long[] osmWays = getOSMWays(matches, scratch.get());
 
-        try {
-            builder.append("id;latitude;longitude;timestamp;speed;edge_id;osm_id\n");
+        // for each edge in trajectory map-matching
+        for (int i = 0; i < matches.size(); i++) {
+            EdgeMatch edgeMatch = matches.get(i);
+            int edgeId = edgeMatch.getEdgeState().getEdge();// output edge_id
+            long osmWay = osmWays[i];
 
-            // iterate over all trajectories
-            for (Entry<Long, MatchResult> mapEntry : mapMatchResult.entrySet()) {
-                GPXExtension previousGPS = null;
-                Long trajId = mapEntry.getKey();// output traj_id
-                mapEntry.getValue().getMatchLength();
-                double totalDelta = 0;
-                // for each edge in trajectory map-matching
-                for (EdgeMatch edgeMatch : mapEntry.getValue().getEdgeMatches()) {
-                    int edgeId = edgeMatch.getEdgeState().getEdge();// output edge_id
-
-                    if (edgeMatch.getGpxExtensions().isEmpty())
-                        edgesWithoutPoints.add(edgeMatch);
-                    // iterate over points on the edge
-                    for (GPXExtension gpsExtension : edgeMatch.getGpxExtensions()) {
-                        if (previousGPS != null) {
-                            if (previousEdge == edgeMatch) {
-                                speed = getSpeedMS(previousGPS, gpsExtension);
-                                builder.append(generateLine(trajId, edgeId, previousGPS.getEntry().getTime(),
-                                        gpsExtension.getEntry().getTime(), speed));
-
-                            } else {
-
-                                // line of previous point
-                                speed = getSpeedMS(previousGPS, gpsExtension);
-
-                                // first segment
-                                timestamp = previousGPS.getEntry().getTime();
-                                int node = previousEdge.getEdgeState().getAdjNode();
-                                nodeAccess.getLatitude(node);
-                                nodeAccess.getLongitude(node);
-
-                                double distance = getPath(previousGPS.getEntry().getLat(), previousGPS.getEntry().getLon(),
-                                        nodeAccess.getLatitude(node), nodeAccess.getLongitude(node))
-                                        .getDistance();
-                                double deltaTime = distance / speed;// time in milliseconds
+            if (edgeMatch.getGpxExtensions().isEmpty())
+                edgesWithoutPoints.add(edgeMatch);
+            // iterate over points on the edge
+            for (GPXExtension gpsExtension : edgeMatch.getGpxExtensions()) {
+                if (previousGPS != null) {
+                    if (previousEdge == edgeMatch) {
+                        speed = getSpeedMS(previousGPS, gpsExtension);
+                        writeSegment(writer, trajId, edgeId, osmWay, previousGPS.getEntry().getTime(),
+                                gpsExtension.getEntry().getTime(), speed);
 
-                                timestamp2 = timestamp + (long) deltaTime;
-                                generateLine(trajId, edgeId, timestamp, timestamp2, speed);
-                                totalDelta += deltaTime;
+                    } else {
 
-                                // empty edges
-                                if (!edgesWithoutPoints.isEmpty()) {
-                                    for (EdgeMatch empty : edgesWithoutPoints) {
-                                        distance = getPath(previousGPS.getEntry().getLat(),
-                                                previousGPS.getEntry().getLon(),
-                                                nodeAccess.getLatitude(empty.getEdgeState().getAdjNode()),
-                                                nodeAccess.getLongitude(empty.getEdgeState().getAdjNode()))
-                                                .getDistance();
-                                        deltaTime = distance / speed;// time in milliseconds
-
-                                        builder.append(generateLine(trajId, edgeId, timestamp2, timestamp + deltaTime, speed));
-                                        timestamp2 = timestamp + (long) deltaTime;
-                                        totalDelta += deltaTime;
-                                    }
-                                }
-
-                                // last segment
-                                node = edgeMatch.getEdgeState().getBaseNode();
-                                nodeAccess.getLatitude(node);
-                                nodeAccess.getLongitude(node);
-
-                                distance = getPath(
-                                        hopper.getGraphHopperStorage().getNodeAccess().getLatitude(node),
-                                        hopper.getGraphHopperStorage().getNodeAccess().getLongitude(node),
-                                        gpsExtension.getEntry().getLat(), gpsExtension.getEntry().getLon())
-                                        .getDistance();
-                                deltaTime = distance / speed;// time in milliseconds
+                        // line of previous point
+                        speed = getSpeedMS(previousGPS, gpsExtension);
 
-                                totalDelta += (long) deltaTime;
-                                builder.append(generateLine(trajId, edgeId, timestamp2, timestamp + deltaTime, speed));
+                        // first segment
+                        timestamp = previousGPS.getEntry().getTime();
+                        int node = previousEdge.getEdgeState().getAdjNode();
 
-                            }
+                        double distance = orZero(getDistance(previousGPS.getQueryResult(), node));
+                        double deltaTime = distance / speed;// time in milliseconds
 
-                            edgesWithoutPoints.clear();
+                        timestamp2 = timestamp + (long) deltaTime;
+                        totalDelta += deltaTime;
+
+                        // empty edges
+                        if (!edgesWithoutPoints.isEmpty()) {
+                            for (EdgeMatch empty : edgesWithoutPoints) {
+                                distance = orZero(getDistance(previousGPS.getQueryResult(),
+                                        empty.getEdgeState().getAdjNode()));
+                                deltaTime = distance / speed;// time in milliseconds
+
+                                writeSegment(writer, trajId, edgeId, osmWay, timestamp2, timestamp + deltaTime, speed);
+                                timestamp2 = timestamp + (long) deltaTime;
+                                totalDelta += deltaTime;
+                            }
                         }
 
-                        previousGPS = gpsExtension;
-                        previousEdge = edgeMatch;
+                        // last segment
+                        node = edgeMatch.getEdgeState().getBaseNode();
+
+                        distance = orZero(getDistance(node, gpsExtension.getQueryResult()));
+                        deltaTime = distance / speed;// time in milliseconds
+
+                        totalDelta += (long) deltaTime;
+                        writeSegment(writer, trajId, edgeId, osmWay, timestamp2, timestamp + deltaTime, speed);
+
                     }
+
+                    edgesWithoutPoints.clear();
                 }
-            }
 
-            writer.write(builder.toString());
-            writer.flush();
-        } finally {
-            writer.close();
+                previousGPS = gpsExtension;
+                previousEdge = edgeMatch;
+            }
         }
     }
 
-    private void saveOnFile(String filePath, StringBuilder builder) {
-        try {
-            FileWriter writer = new FileWriter(new File(filePath));
-            writer.write(builder.toString());
-            writer.flush();
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private static void writeSegment(RecordWriter writer, long trajId, int edgeId, long osmWay, long from, long to,
+                                     double speed) throws IOException {
+        writer.writeLong(trajId);
+        writer.writeInt(edgeId);
+        writer.writeLong(osmWay);
+        writer.writeLong(from);
+        writer.writeLong(to);
+        writer.writeDouble(speed);
+        writer.endRecord();
+    }
+
+    private static void writeSegment(RecordWriter writer, long trajId, int edgeId, long osmWay, long from, double to,
+                                     double speed) throws IOException {
+        writer.writeLong(trajId);
+        writer.writeInt(edgeId);
+        writer.writeLong(osmWay);
+        writer.writeLong(from);
+        writer.writeDouble(to);
+        writer.writeDouble(speed);
+        writer.endRecord();
     }
 
-    private String generateLine(Object ...objects) {
-        if (objects.length == 0) return "\n";
-        return Arrays.stream(objects).map(String::valueOf).reduce((s1, s2) -> s1 + ";" + s2).get() + "\n";
+    /**
+     * OSM way IDs of the matched edges, in the same order, resolved in a single bulk lookup. The array is the buffer
+     * of the scratch, longer than the matches and only valid until the next call.
+     */
+    private long[] getOSMWays(List<EdgeMatch> matches, ExportScratch scratch) {
+        int count = matches.size();
+        scratch.ensureEdges(count);
+        for (int i = 0; i < count; i++)
+            scratch.edgeIds[i] = matches.get(i).getEdgeState().getEdge();
+        hopper.getOSMWays(scratch.edgeIds, count, scratch.osmWays);
+        return scratch.osmWays;
     }
 
     private double getSpeedMS(GPXExtension from, GPXExtension to) {
-        PathWrapper res = getPath(from, to);
-        return res.getDistance() / (to.getEntry().getTime() - from.getEntry().getTime())*1000;
+        double distance = orZero(getDistance(from.getQueryResult(), to.getQueryResult()));
+        return distance / (to.getEntry().getTime() - from.getEntry().getTime())*1000;
     }
 
-    private PathWrapper getPath(GPXExtension from, GPXExtension to) {
-        GHPoint3D fromP = from.getQueryResult().getSnappedPoint();
-        GHPoint3D toP = to.getQueryResult().getSnappedPoint();
-        return getPath(fromP.getLat(), fromP.getLon(), toP.getLat(), toP.getLon());
+    // a route that wasn't found counts as no distance
+    private static double orZero(double distance) {
+        return Double.isNaN(distance) ? 0 : distance;
     }
 
-    private PathWrapper getPath(double latFrom, double lonFrom, double latTo, double lonTo) {
-        GHRequest req = new GHRequest(latFrom, lonFrom, latTo, lonTo);
-        req.setVehicle("car").setAlgorithm("dijkstra");
-        return hopper.route(req).getBest();
+    /**
+     * Distance of the fastest route between two matched positions, NaN if there is none. Positions are snapped
+     * points of the matching, or tower nodes given by id.
+     */
+    private double getDistance(QueryResult from, QueryResult to) {
+        if (isOnLoop(from) || isOnLoop(to))
+            return routeDistance(from.getSnappedPoint(), to.getSnappedPoint());
+        ExportScratch scratch = this.scratch.get();
+        return getDistance(setRouteEnd(scratch.routeFrom, from), setRouteEnd(scratch.routeTo, to));
+    }
+
+    private double getDistance(int fromNode, QueryResult to) {
+        if (isOnLoop(to))
+            return routeDistance(new GHPoint(nodeAccess.getLatitude(fromNode), nodeAccess.getLongitude(fromNode)),
+                    to.getSnappedPoint());
+        ExportScratch scratch = this.scratch.get();
+        return getDistance(scratch.routeFrom.setNode(fromNode), setRouteEnd(scratch.routeTo, to));
+    }
+
+    private double getDistance(QueryResult from, int toNode) {
+        if (isOnLoop(from))
+            return routeDistance(from.getSnappedPoint(),
+                    new GHPoint(nodeAccess.getLatitude(toNode), nodeAccess.getLongitude(toNode)));
+        ExportScratch scratch = this.scratch.get();
+        return getDistance(setRouteEnd(scratch.routeFrom, from), scratch.routeTo.setNode(toNode));
+    }
+
+    /**
+     * Compose the fastest route like GraphHopper finds it on a query graph: leave the edge of the start towards one of
+     * its nodes, take the cached route between nodes and enter the edge of the end from one of its nodes. Two points
+     * on the same edge in driving order are connected directly, which is always the fastest.
+     */
+    private double getDistance(RouteEnd from, RouteEnd to) {
+        if (from.edge >= 0 && from.edge == to.edge) {
+            if (to.toBase >= from.toBase && from.forward != Double.POSITIVE_INFINITY)
+                return to.toBase - from.toBase;
+            if (to.toBase <= from.toBase && from.backward != Double.POSITIVE_INFINITY)
+                return from.toBase - to.toBase;
+        }
+        double bestWeight = Double.POSITIVE_INFINITY;
+        double bestDistance = Double.NaN;
+        for (int exit = 0; exit < from.nodes(); exit++) {
+            // leave backwards to the base node or forwards to the adj node
+            double exitPerMeter = exit == 0 ? from.backward : from.forward;
+            if (exitPerMeter == Double.POSITIVE_INFINITY) continue;
+            int exitNode = exit == 0 ? from.base : from.adj;
+            double exitDistance = exit == 0 ? from.toBase : from.toAdj;
+            for (int entry = 0; entry < to.nodes(); entry++) {
+                // enter forwards from the base node or backwards from the adj node
+                double entryPerMeter = entry == 0 ? to.forward : to.backward;
+                if (entryPerMeter == Double.POSITIVE_INFINITY) continue;
+                int entryNode = entry == 0 ? to.base : to.adj;
+                double entryDistance = entry == 0 ? to.toBase : to.toAdj;
+
+                double weight = exitPerMeter * exitDistance + entryPerMeter * entryDistance;
+                double distance = exitDistance + entryDistance;
+                if (exitNode != entryNode) {
+                    PathWrapper path = pathCache.get(exitNode, entryNode, router);
+                    if (path.hasErrors()) continue;
+                    weight += path.getRouteWeight();
+                    distance += path.getDistance();
+                }
+                if (weight < bestWeight) {
+                    bestWeight = weight;
+                    bestDistance = distance;
+                }
+            }
+        }
+        return bestDistance;
+    }
+
+    private RouteEnd setRouteEnd(RouteEnd end, QueryResult position) {
+        if (position.getSnappedPosition() == QueryResult.Position.TOWER)
+            return end.setNode(position.getClosestNode());
+        EdgeIteratorState edge = position.getClosestEdge();
+        GHPoint3D point = position.getSnappedPoint();
+        Weighting weighting = algoOptions.getWeighting();
+        double length = edge.getDistance();
+        end.edge = edge.getEdge();
+        end.base = edge.getBaseNode();
+        end.adj = edge.getAdjNode();
+        end.toBase = edgeGeometries.getOffset(edge, point.getLat(), point.getLon());
+        end.toAdj = Math.max(0, edgeGeometries.getLength(edge) - end.toBase);
+        end.forward = perMeter(weighting.calcWeight(edge, false, EdgeIterator.NO_EDGE), length);
+        end.backward = perMeter(weighting.calcWeight(edge, true, EdgeIterator.NO_EDGE), length);
+        // orient every edge from the lower node, as the query graph does, so points on the same edge agree
+        if (end.base > end.adj)
+            end.reverse();
+        return end;
+    }
+
+    private static double perMeter(double weight, double length) {
+        if (weight == Double.POSITIVE_INFINITY || length == 0)
+            return weight == Double.POSITIVE_INFINITY ? weight : 0;
+        return weight / length;
+    }
+
+    private static boolean isOnLoop(QueryResult position) {
+        EdgeIteratorState edge = position.getClosestEdge();
+        return position.getSnappedPosition() != QueryResult.Position.TOWER && edge.getBaseNode() == edge.getAdjNode();
+    }
+
+    /**
+     * Distance of the uncached route between two points, NaN if there is none.
+     */
+    private double routeDistance(GHPoint from, GHPoint to) {
+        PathWrapper path = route(from.getLat(), from.getLon(), to.getLat(), to.getLon());
+        return path.hasErrors() ? Double.NaN : path.getDistance();
+    }
+
+    private PathWrapper routeNodes(int fromNode, int toNode) {
+        return route(nodeAccess.getLatitude(fromNode), nodeAccess.getLongitude(fromNode),
+                nodeAccess.getLatitude(toNode), nodeAccess.getLongitude(toNode));
+    }
+
+    /**
+     * End of a route: a point on an edge, with the distances along the edge to its nodes and the weight per meter of
+     * driving along it in each direction, infinite where it's closed; or a tower node, with both nodes the same.
+     */
+    private static class RouteEnd {
+
+        int edge;
+        int base, adj;
+        double toBase, toAdj;
+        double forward, backward;
+
+        RouteEnd setNode(int node) {
+            edge = -1;
+            base = adj = node;
+            toBase = toAdj = 0;
+            forward = backward = 0;
+            return this;
+        }
+
+        int nodes() {
+            return edge < 0 ? 1 : 2;
+        }
+
+        void reverse() {
+            int node = base;
+            base = adj;
+            adj = node;
+            double distance = toBase;
+            toBase = toAdj;
+            toAdj = distance;
+            double perMeter = forward;
+            forward = backward;
+            backward = perMeter;
+        }
+    }
+
+    /**
+     * Route between two points with the configured routing mode, bypassing the path cache.
+     */
+    PathWrapper route(double latFrom, double lonFrom, double latTo, double lonTo) {
+        if (snapCache != null && routingMode == RoutingMode.DIJKSTRA)
+            return routeWithCachedSnaps(latFrom, lonFrom, latTo, lonTo);
+        GHRequest req = createRequest(latFrom, lonFrom, latTo, lonTo);
+        // only the distance is used, skip the geometry so cached entries stay small
+        req.getHints().put(Parameters.Routing.CALC_POINTS, false);
+        long start = System.nanoTime();
+        try {
+            GHResponse response = hopper.route(req);
+            // no path at all when a point can't be snapped, report it like a route that wasn't found
+            if (response.getAll().isEmpty())
+                return new PathWrapper().addErrors(response.getErrors());
+            return response.getBest();
+        } finally {
+            metrics.recordLatency(PipelineMetrics.Stage.ROUTE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Route like GraphHopper does for a Dijkstra request, but with both endpoints snapped through the snap cache, so
+     * the points around the hotspots are not searched in the location index again.
+     */
+    private PathWrapper routeWithCachedSnaps(double latFrom, double lonFrom, double latTo, double lonTo) {
+        long start = System.nanoTime();
+        try {
+            PathWrapper path = new PathWrapper();
+            List<QueryResult> from = snapCache.findNClosest(latFrom, lonFrom, edgeFilter, ROUTE_SNAP_RADIUS);
+            List<QueryResult> to = snapCache.findNClosest(latTo, lonTo, edgeFilter, ROUTE_SNAP_RADIUS);
+            if (from.isEmpty() || to.isEmpty()) {
+                int point = from.isEmpty() ? 0 : 1;
+                path.addError(new PointNotFoundException("Cannot find point " + point, point));
+                return path;
+            }
+            QueryGraph queryGraph = new QueryGraph(hopper.getGraphHopperStorage());
+            queryGraph.lookup(from.get(0), to.get(0));
+            Path route = new Dijkstra(queryGraph, algoOptions.getWeighting(), TraversalMode.NODE_BASED)
+                    .calcPath(from.get(0).getClosestNode(), to.get(0).getClosestNode());
+            if (route.isFound())
+                path.setDistance(route.getDistance()).setRouteWeight(route.getWeight());
+            else
+                path.addError(new ConnectionNotFoundException("Connection between locations not found",
+                        Collections.<String, Object>emptyMap()));
+            return path;
+        } finally {
+            metrics.recordLatency(PipelineMetrics.Stage.ROUTE, System.nanoTime() - start);
+        }
     }
 
     private List<PathWrapper> getPathAll(double latFrom, double lonFrom, double latTo, double lonTo) {
+        return hopper.route(createRequest(latFrom, lonFrom, latTo, lonTo)).getAll();
+    }
+
+    private GHRequest createRequest(double latFrom, double lonFrom, double latTo, double lonTo) {
         GHRequest req = new GHRequest(latFrom, lonFrom, latTo, lonTo);
-        req.setVehicle("car").setAlgorithm("dijkstra");
-        return hopper.route(req).getAll();
+        req.setVehicle("car").setWeighting("fastest");
+        switch (routingMode) {
+            case CH:
+                req.setAlgorithm(Parameters.Algorithms.DIJKSTRA_BI);
+                break;
+            case LM:
+                req.setAlgorithm(Parameters.Algorithms.ASTAR_BI);
+                req.getHints().put(Parameters.CH.DISABLE, true);
+                break;
+            default:
+                req.setAlgorithm(Parameters.Algorithms.DIJKSTRA);
+                req.getHints().put(Parameters.CH.DISABLE, true);
+                req.getHints().put(Parameters.Landmark.DISABLE, true);
+        }
+        return req;
     }
 
 
@@ -0,0 +1,287 @@
+import com.graphhopper.matching.MatchResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongPredicate;
+
+/**
+ * Runs reading, matching, exporting and writing as overlapping stages connected by bounded queues:
+ * <ul>
+ * <li>the calling thread reads trajectories and hands them to the match threads of {@link MapMatcher},</li>
+ * <li>match results are queued for the export threads, which render the rows of every exporter into memory,</li>
+ * <li>one writer thread copies the rendered rows to the outputs, so exporters need no lock.</li>
+ * </ul>
+ * A full queue blocks the stage before it, down to the reader, so memory stays bounded by the queue sizes. The
+ * buffers the rows are rendered into go back to the export threads once they are written, so exporting doesn't
+ * allocate per trajectory. If a stage fails, matching stops after the trajectories that are in progress.
+ */
+public class MatchingPipeline {
+
+    /**
+     * Writes the rows of one matched trajectory, e.g. {@link MapMatcher#writeSegmentsWithoutEmptyEdges}. Called from
+     * several export threads at once, each one with its own writer.
+     */
+    public interface Exporter {
+        void write(long tid, MatchResult result, RecordWriter writer) throws IOException;
+    }
+
+    /**
+     * Accumulates matched trajectories in memory instead of writing rows, e.g. into an {@link EdgeSpeedAggregator}.
+     * Called from several export threads at once.
+     */
+    public interface Aggregator {
+        void add(long tid, MatchResult result);
+    }
+
+    /**
+     * Called by the writer thread once all rows of a trajectory are written.
+     */
+    public interface Listener {
+        void written(long tid) throws IOException;
+    }
+
+    private static final Object END = new Object();
+
+    private final int matchThreads;
+    private final int exportThreads;
+    private final int queueSize;
+    private final List<Exporter> exporters = new ArrayList<>();
+    private final List<RecordWriter> writers = new ArrayList<>();
+    private final List<Aggregator> aggregators = new ArrayList<>();
+
+    public MatchingPipeline(int matchThreads, int exportThreads, int queueSize) {
+        this.matchThreads = matchThreads;
+        this.exportThreads = exportThreads;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Pipeline configured with {@code -Dmapmatcher.pipeline.matchThreads}, {@code exportThreads} and
+     * {@code queueSize}. Both thread counts default to the number of processors.
+     */
+    public static MatchingPipeline fromSystemProperties() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return new MatchingPipeline(
+                Integer.getInteger("mapmatcher.pipeline.matchThreads", processors),
+                Integer.getInteger("mapmatcher.pipeline.exportThreads", processors),
+                Integer.getInteger("mapmatcher.pipeline.queueSize", 64));
+    }
+
+    public MatchingPipeline addExporter(Exporter exporter, RecordWriter writer) {
+        exporters.add(exporter);
+        writers.add(writer);
+        return this;
+    }
+
+    public MatchingPipeline addAggregator(Aggregator aggregator) {
+        aggregators.add(aggregator);
+        return this;
+    }
+
+    /**
+     * Match and export all trajectories of the reader. The writers are flushed but not closed.
+     *
+     * @param completed trajectories, by (sub-)id, to skip because a previous run exported them
+     * @param listener  told about every trajectory whose rows are written
+     */
+    public void run(TrajectoryReader reader, LongPredicate completed, Listener listener) throws IOException {
+        BlockingQueue<Object> matched = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<Object> rendered = new ArrayBlockingQueue<>(queueSize);
+        // enough buffers that neither the queue to the writer nor any export thread has to wait for one
+        BlockingQueue<Rendered> buffers = new ArrayBlockingQueue<>(queueSize + exportThreads);
+        for (int i = 0; i < queueSize + exportThreads; i++)
+            buffers.add(new Rendered(exporters.size()));
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        List<Thread> exportStage = new ArrayList<>();
+        for (int i = 0; i < exportThreads; i++)
+            exportStage.add(start("export-" + i, () -> export(matched, buffers, rendered, failure)));
+        Thread writeStage = start("write", () -> write(rendered, buffers, listener, failure));
+
+        try {
+            MapMatcher.getInstance().run(reader, matchThreads, completed, (tid, result) -> {
+                // stops the match stage, which is reported below as the failure of the stage that caused it
+                if (failure.get() != null)
+                    throw new IllegalStateException("Export failed", failure.get());
+                put(matched, new Matched(tid, result));
+            });
+        } catch (RuntimeException e) {
+            if (failure.get() == null)
+                throw e;
+        } finally {
+            for (int i = 0; i < exportThreads; i++)
+                put(matched, END);
+            join(exportStage);
+            put(rendered, END);
+            join(writeStage);
+        }
+        for (RecordWriter writer : writers)
+            writer.flush();
+        if (failure.get() instanceof IOException)
+            throw (IOException) failure.get();
+        if (failure.get() != null)
+            throw new IllegalStateException("Pipeline failed", failure.get());
+    }
+
+    private void export(BlockingQueue<Object> matched, BlockingQueue<Rendered> buffers, BlockingQueue<Object> rendered,
+                        AtomicReference<Throwable> failure) {
+        for (Object next = take(matched); next != END; next = take(matched)) {
+            // after a failure the queue is still drained, so the stages before don't block forever
+            if (failure.get() != null) continue;
+            Matched m = (Matched) next;
+            Rendered r = take(buffers);
+            try {
+                render(m.tid, m.result, r);
+                put(rendered, r);
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+                buffers.add(r);
+            }
+        }
+    }
+
+    private void write(BlockingQueue<Object> rendered, BlockingQueue<Rendered> buffers, Listener listener,
+                       AtomicReference<Throwable> failure) {
+        Rows rows = new Rows();
+        for (Object next = take(rendered); next != END; next = take(rendered)) {
+            Rendered r = (Rendered) next;
+            try {
+                if (failure.get() != null) continue;
+                copy(r, rows);
+                listener.written(r.tid);
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                buffers.add(r);
+            }
+        }
+    }
+
+    /**
+     * The work of an export thread for one trajectory: render the rows of every exporter into the buffers and add the
+     * trajectory to the aggregators.
+     */
+    void render(long tid, MatchResult result, Rendered r) throws IOException {
+        r.tid = tid;
+        for (int i = 0; i < exporters.size(); i++) {
+            r.rows[i].reset();
+            r.frames[i].resetRecords();
+            exporters.get(i).write(tid, result, r.frames[i]);
+        }
+        for (Aggregator aggregator : aggregators)
+            aggregator.add(tid, result);
+    }
+
+    /**
+     * The work of the writer thread for one trajectory: copy the rendered rows to the writers.
+     */
+    void copy(Rendered r, Rows rows) throws IOException {
+        for (int i = 0; i < writers.size(); i++) {
+            rows.read(r.rows[i]);
+            DataRecordWriter.copy(rows.in, r.frames[i].getRecords(), writers.get(i));
+        }
+    }
+
+    private static Thread start(String name, Runnable stage) {
+        Thread thread = new Thread(stage, "pipeline-" + name);
+        thread.start();
+        return thread;
+    }
+
+    private static void put(BlockingQueue<Object> queue, Object item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+
+    private static void join(List<Thread> threads) {
+        for (Thread thread : threads)
+            join(thread);
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Matched {
+        final long tid;
+        final MatchResult result;
+
+        Matched(long tid, MatchResult result) {
+            this.tid = tid;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Rows of one trajectory for every exporter, reused for the next trajectory once they are written.
+     */
+    static class Rendered {
+        long tid;
+        final Frame[] rows;
+        final DataRecordWriter[] frames;
+
+        Rendered(int outputs) {
+            this.rows = new Frame[outputs];
+            this.frames = new DataRecordWriter[outputs];
+            for (int i = 0; i < outputs; i++) {
+                rows[i] = new Frame();
+                frames[i] = new DataRecordWriter(new DataOutputStream(rows[i]));
+            }
+        }
+    }
+
+    /**
+     * Growing buffer whose content can be read without copying it.
+     */
+    private static class Frame extends ByteArrayOutputStream {
+        Frame() {
+            super(1 << 12);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * Reads the content of one frame after the other.
+     */
+    static class Rows extends ByteArrayInputStream {
+        final DataInputStream in = new DataInputStream(this);
+
+        Rows() {
+            super(new byte[0]);
+        }
+
+        void read(Frame frame) {
+            buf = frame.array();
+            pos = 0;
+            count = frame.size();
+        }
+    }
+}
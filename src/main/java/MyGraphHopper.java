@@ -37,6 +37,8 @@ public class MyGraphHopper extends GraphHopper {
     // mapping of internal edge ID to OSM way ID
     private DataAccess edgeMapping;
     private BitUtil bitUtil;
+    // heap copy of edgeMapping, indexed by internal edge ID; null until loadOSMWaysInMemory
+    private long[] osmWays;
 
     @Override
     public boolean load(String graphHopperFolder) {
@@ -85,10 +87,43 @@ public class MyGraphHopper extends GraphHopper {
     }
 
     public long getOSMWay(int internalEdgeId) {
+        if (osmWays != null)
+            return osmWays[internalEdgeId];
         long pointer = 8L * internalEdgeId;
         return bitUtil.combineIntsToLong(edgeMapping.getInt(pointer), edgeMapping.getInt(pointer + 4L));
     }
 
+    /**
+     * Resolve the first {@code count} internal edge IDs to OSM way IDs in one pass. Without
+     * {@link #loadOSMWaysInMemory()} every edge costs two reads of the edge mapping.
+     */
+    public void getOSMWays(int[] internalEdgeIds, int count, long[] result) {
+        long[] ways = osmWays;
+        if (ways != null) {
+            for (int i = 0; i < count; i++)
+                result[i] = ways[internalEdgeIds[i]];
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            long pointer = 8L * internalEdgeIds[i];
+            result[i] = bitUtil.combineIntsToLong(edgeMapping.getInt(pointer), edgeMapping.getInt(pointer + 4L));
+        }
+    }
+
+    /**
+     * Copy the edge to OSM way mapping to the heap, 8 bytes per edge, so lookups are plain array reads.
+     * Must be called after the graph is imported or loaded and before lookups start on other threads.
+     */
+    public void loadOSMWaysInMemory() {
+        int edges = (int) Math.min(getGraphHopperStorage().getAllEdges().getMaxId(), edgeMapping.getCapacity() / 8);
+        long[] ways = new long[edges];
+        for (int edge = 0; edge < edges; edge++) {
+            long pointer = 8L * edge;
+            ways[edge] = bitUtil.combineIntsToLong(edgeMapping.getInt(pointer), edgeMapping.getInt(pointer + 4L));
+        }
+        osmWays = ways;
+    }
+
     @Override
     public List<Path> calcPaths(GHRequest request, GHResponse rsp) {
         return super.calcPaths(request, rsp);
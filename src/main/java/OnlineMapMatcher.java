@@ -0,0 +1,192 @@
+import com.graphhopper.matching.EdgeMatch;
+import com.graphhopper.matching.GPXExtension;
+import com.graphhopper.matching.MapMatching;
+import com.graphhopper.matching.MatchResult;
+import com.graphhopper.util.EdgeIteratorState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Map matching of live GPS pings. Every taxi has a bounded window of its latest points that is matched again on
+ * each update, so the cost of an update depends on the window size and not on the length of the trip. Once a
+ * matched edge is at least {@code lag} points behind the newest ping it is considered stable: it is handed to the
+ * listener and its points leave the window, except the last {@code lag} ones. They stay as the context of the next
+ * match, whose edges up to the end of the finalized ones are dropped, so the next result continues where this one
+ * ended.
+ * <p>
+ * Not thread-safe. To use several threads, partition the taxis between one instance per thread.
+ */
+public class OnlineMapMatcher {
+
+    public interface Listener {
+        /**
+         * Called with the next edges of a taxi that will not change anymore, in driving order and with their points.
+         * Consecutive results of a taxi share the node between them: when a new match leaves the finalized route, the
+         * gap is filled with the fastest route, as edges without points. Only a taxi without any route back starts
+         * over, counted as a path error.
+         */
+        void onFinalized(int taxiId, MatchResult finalized);
+    }
+
+    private final int windowSize;
+    private final int lag;
+    private final Listener listener;
+    private final MapMatching mapMatching = MapMatcher.getInstance().createMapMatching();
+    private final Map<Integer, Taxi> taxis = new HashMap<>();
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+    /**
+     * @param windowSize maximum number of points kept per taxi
+     * @param lag        number of newer points an edge needs before it is finalized, smaller than windowSize
+     * @param listener
+     */
+    public OnlineMapMatcher(int windowSize, int lag, Listener listener) {
+        if (lag < 1 || lag >= windowSize)
+            throw new IllegalArgumentException("lag must be between 1 and " + (windowSize - 1) + ", got " + lag);
+        this.windowSize = windowSize;
+        this.lag = lag;
+        this.listener = listener;
+    }
+
+    public void update(int taxiId, double lat, double lng, long timestamp) {
+        Taxi taxi = taxis.computeIfAbsent(taxiId, Taxi::new);
+        Trajectory window = taxi.window;
+        window.addPoint(lat, lng, timestamp);
+        if (window.size() <= lag + 1) return;
+
+        MatchResult result = match(window);
+        if (result == null) return;
+
+        List<EdgeMatch> edges = join(taxi, result.getEdgeMatches());
+        if (edges.isEmpty()) return;
+        long stableTime = window.getTimestamp(window.size() - lag - 1);
+        // the edge of the newest stable point may still be extended, everything before it is final
+        int open = 0;
+        for (int i = 0; i < edges.size(); i++) {
+            List<GPXExtension> points = edges.get(i).getGpxExtensions();
+            if (!points.isEmpty() && points.get(0).getEntry().getTime() <= stableTime)
+                open = i;
+        }
+        // keep the window bounded even if the match doesn't settle
+        if (open == 0 && window.size() >= windowSize)
+            open = 1;
+        if (open > 0)
+            finalizeEdges(taxi, edges, Math.min(open, edges.size()));
+    }
+
+    /**
+     * Match and finalize whatever is left of a taxi's window, for example when its trip ends.
+     */
+    public void finish(int taxiId) {
+        Taxi taxi = taxis.remove(taxiId);
+        if (taxi == null || taxi.window.size() < 2) return;
+        MatchResult result = match(taxi.window);
+        if (result == null) return;
+        List<EdgeMatch> edges = join(taxi, result.getEdgeMatches());
+        if (!edges.isEmpty())
+            listener.onFinalized(taxiId, new MatchResult(new ArrayList<>(edges)));
+    }
+
+    public void finishAll() {
+        for (Integer taxiId : new ArrayList<>(taxis.keySet()))
+            finish(taxiId);
+    }
+
+    /**
+     * @return number of taxis with points that are not finalized yet
+     */
+    public int getActiveTaxis() {
+        return taxis.size();
+    }
+
+    private MatchResult match(Trajectory window) {
+        long start = System.nanoTime();
+        try {
+            return mapMatching.doWork(window.getPoints());
+        } catch (IllegalArgumentException e) {
+            // usually too few distinct points or a break in the road network, give up on the oldest point
+            metrics.countFailedMatch();
+            window.removePoints(1);
+            return null;
+        } finally {
+            metrics.recordLatency(PipelineMetrics.Stage.MATCH, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Continue a new match of the window from the last finalized node: drop its edges up to that node, which cover the
+     * context and were handed out already, or bridge from that node to its first edge with a point that is new.
+     *
+     * @return the edges that follow the finalized ones, empty if there are none yet
+     */
+    private List<EdgeMatch> join(Taxi taxi, List<EdgeMatch> edges) {
+        if (taxi.lastNode < 0)
+            return edges;
+        int fresh = edges.size();
+        for (int i = 0; i < edges.size() && fresh == edges.size(); i++) {
+            List<GPXExtension> points = edges.get(i).getGpxExtensions();
+            if (!points.isEmpty() && points.get(points.size() - 1).getEntry().getTime() > taxi.anchorTime)
+                fresh = i;
+        }
+        // the route may pass the node more than once while it covers the context, the last time is where it ended
+        for (int i = Math.min(fresh, edges.size() - 1); i >= 0; i--) {
+            if (edges.get(i).getEdgeState().getAdjNode() == taxi.lastNode)
+                return edges.subList(i + 1, edges.size());
+        }
+        if (fresh == edges.size())
+            return Collections.emptyList();
+
+        List<EdgeIteratorState> bridge = MapMatcher.getInstance().routeEdges(taxi.lastNode,
+                edges.get(fresh).getEdgeState().getBaseNode());
+        if (bridge == null) {
+            metrics.countPathError();
+            taxi.lastNode = -1;
+            return edges.subList(fresh, edges.size());
+        }
+        List<EdgeMatch> joined = new ArrayList<>(bridge.size() + edges.size() - fresh);
+        for (EdgeIteratorState edge : bridge)
+            joined.add(new EdgeMatch(edge, Collections.<GPXExtension>emptyList()));
+        joined.addAll(edges.subList(fresh, edges.size()));
+        return joined;
+    }
+
+    private void finalizeEdges(Taxi taxi, List<EdgeMatch> edges, int count) {
+        // the last lag finalized points stay in the window as the context of the next match
+        for (int i = count - 1; i >= 0; i--) {
+            List<GPXExtension> points = edges.get(i).getGpxExtensions();
+            if (!points.isEmpty()) {
+                taxi.anchorTime = points.get(points.size() - 1).getEntry().getTime();
+                break;
+            }
+        }
+        taxi.lastNode = edges.get(count - 1).getEdgeState().getAdjNode();
+        Trajectory window = taxi.window;
+        int anchor = 0;
+        while (anchor < window.size() && window.getTimestamp(anchor) < taxi.anchorTime)
+            anchor++;
+        window.removePoints(Math.max(0, anchor + 1 - lag));
+        listener.onFinalized(taxi.id, new MatchResult(new ArrayList<>(edges.subList(0, count))));
+    }
+
+    /**
+     * Window of a taxi and where its finalized route ends.
+     */
+    private static class Taxi {
+
+        final int id;
+        final Trajectory window;
+        // adj node of the last finalized edge, -1 before the first one
+        int lastNode = -1;
+        // time of the last finalized point
+        long anchorTime = Long.MIN_VALUE;
+
+        Taxi(int id) {
+            this.id = id;
+            this.window = new Trajectory(id, id);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+import java.io.IOException;
+
+/**
+ * File formats the exporters can write.
+ */
+public enum OutputFormat {
+    /** semicolon separated text with a header line */
+    CSV,
+    /** fixed-width binary columns, see {@link ColumnarRecordWriter} */
+    COLUMNAR;
+
+    public RecordWriter open(String filePath, String[] names, ColumnType[] types) throws IOException {
+        if (this == COLUMNAR)
+            return new ColumnarRecordWriter(filePath, names, types);
+        return new CsvRecordWriter(filePath, names);
+    }
+}
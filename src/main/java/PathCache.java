@@ -0,0 +1,139 @@
+import com.graphhopper.PathWrapper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of routes between tower nodes, keyed on the node ids. Routes between points on edges are
+ * composed from these, so every trajectory passing the same nodes shares them. Entries are spread over independently
+ * locked segments, so the cache can be shared by all matching threads. A hit doesn't allocate: lookups go through a
+ * key reused by the calling thread, and only a miss stores a key of its own.
+ */
+public class PathCache {
+
+    /**
+     * Computes the route on a miss.
+     */
+    public interface Router {
+        PathWrapper route(int fromNode, int toNode);
+    }
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ThreadLocal<Key> lookupKeys = ThreadLocal.withInitial(Key::new);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public PathCache(int maxSize) {
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(segmentSize);
+    }
+
+    /**
+     * Return the cached route between the two nodes, calling the router on a miss. Concurrent misses on the same key
+     * may both route; the last result wins.
+     */
+    public PathWrapper get(int fromNode, int toNode, Router router) {
+        Key key = lookupKeys.get().set(fromNode, toNode);
+        Segment segment = segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+        PathWrapper path;
+        synchronized (segment) {
+            path = segment.get(key);
+        }
+        if (path != null) {
+            hits.incrementAndGet();
+            return path;
+        }
+        misses.incrementAndGet();
+        path = router.route(fromNode, toNode);
+        synchronized (segment) {
+            segment.put(new Key().set(fromNode, toNode), path);
+        }
+        return path;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long lookups = getHits() + getMisses();
+        return lookups == 0 ? 0 : (double) getHits() / lookups;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("path cache: %d entries, %d hits, %d misses, hit ratio %.1f%%",
+                size(), getHits(), getMisses(), 100 * getHitRatio());
+    }
+
+    private static class Segment extends LinkedHashMap<Key, PathWrapper> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, PathWrapper> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    /**
+     * Mutable for the lookups; a key stored in a segment is never changed again.
+     */
+    private static class Key {
+
+        private int fromNode, toNode;
+
+        Key set(int fromNode, int toNode) {
+            this.fromNode = fromNode;
+            this.toNode = toNode;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return fromNode == other.fromNode && toNode == other.toNode;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fromNode + toNode;
+        }
+    }
+}
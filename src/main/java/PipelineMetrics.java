@@ -0,0 +1,299 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the read, match, route and write stages, shared by the whole process.
+ * Latencies are recorded in nanoseconds. The metrics can be dumped to a file or registered as an MBean.
+ */
+public class PipelineMetrics implements PipelineMetricsMBean {
+
+    public enum Stage {
+        /** reading one trajectory from the input */
+        READ,
+        /** MapMatching.doWork of one trajectory */
+        MATCH,
+        /** one post-match route that was not found in the path cache */
+        ROUTE,
+        /** exporting the rows of one trajectory */
+        WRITE
+    }
+
+    private static final String OBJECT_NAME = "regis.mapmatching:type=PipelineMetrics";
+    private static PipelineMetrics instance = new PipelineMetrics();
+
+    private final Histogram[] latencies = new Histogram[Stage.values().length];
+    private final Histogram matchedPointsPerSecond = new Histogram();
+    private final LongAdder trajectoriesRead = new LongAdder();
+    private final LongAdder pointsRead = new LongAdder();
+    private final LongAdder malformedRows = new LongAdder();
+    private final LongAdder trajectoriesMatched = new LongAdder();
+    private final LongAdder failedMatches = new LongAdder();
+    private final LongAdder pathErrors = new LongAdder();
+    private final LongAdder zeroDistanceSegments = new LongAdder();
+    private final LongAdder splitPieces = new LongAdder();
+    private final LongAdder retriedPieces = new LongAdder();
+    private final LongAdder droppedPieces = new LongAdder();
+    private final LongAdder[] filteredPoints = new LongAdder[TrajectoryFilter.DropReason.values().length];
+
+    public static PipelineMetrics getInstance() {
+        return instance;
+    }
+
+    private PipelineMetrics() {
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = new Histogram();
+        for (int i = 0; i < filteredPoints.length; i++)
+            filteredPoints[i] = new LongAdder();
+    }
+
+    public void recordLatency(Stage stage, long nanos) {
+        latencies[stage.ordinal()].record(nanos);
+    }
+
+    public Histogram getLatency(Stage stage) {
+        return latencies[stage.ordinal()];
+    }
+
+    public void countRead(int points) {
+        trajectoriesRead.increment();
+        pointsRead.add(points);
+    }
+
+    public void countMalformedRows(long rows) {
+        malformedRows.add(rows);
+    }
+
+    public void countMatched(int points, long nanos) {
+        trajectoriesMatched.increment();
+        if (nanos > 0)
+            matchedPointsPerSecond.record(points * 1_000_000_000L / nanos);
+    }
+
+    public void countFailedMatch() {
+        failedMatches.increment();
+    }
+
+    public void countPathError() {
+        pathErrors.increment();
+    }
+
+    public void countZeroDistanceSegment() {
+        zeroDistanceSegments.increment();
+    }
+
+    /**
+     * @param pieces number of pieces a trajectory was cut into at its gaps
+     */
+    public void countSplitPieces(int pieces) {
+        splitPieces.add(pieces);
+    }
+
+    public void countRetriedPiece() {
+        retriedPieces.increment();
+    }
+
+    public void countDroppedPiece() {
+        droppedPieces.increment();
+    }
+
+    public void countFiltered(TrajectoryFilter.DropReason reason, int points) {
+        filteredPoints[reason.ordinal()].add(points);
+    }
+
+    public long getFilteredPoints(TrajectoryFilter.DropReason reason) {
+        return filteredPoints[reason.ordinal()].sum();
+    }
+
+    /**
+     * Points per second of MapMatching.doWork, one value per matched trajectory.
+     */
+    public Histogram getMatchedPointsPerSecond() {
+        return matchedPointsPerSecond;
+    }
+
+    @Override
+    public long getTrajectoriesRead() {
+        return trajectoriesRead.sum();
+    }
+
+    @Override
+    public long getPointsRead() {
+        return pointsRead.sum();
+    }
+
+    @Override
+    public long getMalformedRows() {
+        return malformedRows.sum();
+    }
+
+    @Override
+    public long getTrajectoriesMatched() {
+        return trajectoriesMatched.sum();
+    }
+
+    @Override
+    public long getFailedMatches() {
+        return failedMatches.sum();
+    }
+
+    @Override
+    public long getPathErrors() {
+        return pathErrors.sum();
+    }
+
+    @Override
+    public long getZeroDistanceSegments() {
+        return zeroDistanceSegments.sum();
+    }
+
+    @Override
+    public long getSplitPieces() {
+        return splitPieces.sum();
+    }
+
+    @Override
+    public long getRetriedPieces() {
+        return retriedPieces.sum();
+    }
+
+    @Override
+    public long getDroppedPieces() {
+        return droppedPieces.sum();
+    }
+
+    @Override
+    public long getFilteredPoints() {
+        long points = 0;
+        for (LongAdder filtered : filteredPoints)
+            points += filtered.sum();
+        return points;
+    }
+
+    @Override
+    public double getReadLatencyP50() {
+        return millis(getLatency(Stage.READ).getPercentile(0.5));
+    }
+
+    @Override
+    public double getReadLatencyP99() {
+        return millis(getLatency(Stage.READ).getPercentile(0.99));
+    }
+
+    @Override
+    public double getMatchLatencyP50() {
+        return millis(getLatency(Stage.MATCH).getPercentile(0.5));
+    }
+
+    @Override
+    public double getMatchLatencyP99() {
+        return millis(getLatency(Stage.MATCH).getPercentile(0.99));
+    }
+
+    @Override
+    public double getRouteLatencyP50() {
+        return millis(getLatency(Stage.ROUTE).getPercentile(0.5));
+    }
+
+    @Override
+    public double getRouteLatencyP99() {
+        return millis(getLatency(Stage.ROUTE).getPercentile(0.99));
+    }
+
+    @Override
+    public double getWriteLatencyP50() {
+        return millis(getLatency(Stage.WRITE).getPercentile(0.5));
+    }
+
+    @Override
+    public double getWriteLatencyP99() {
+        return millis(getLatency(Stage.WRITE).getPercentile(0.99));
+    }
+
+    @Override
+    public long getMatchedPointsPerSecondP50() {
+        return matchedPointsPerSecond.getPercentile(0.5);
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("trajectories read: ").append(getTrajectoriesRead())
+                .append(", points read: ").append(getPointsRead())
+                .append(", malformed rows: ").append(getMalformedRows()).append('\n');
+        report.append("trajectories matched: ").append(getTrajectoriesMatched())
+                .append(", failed matches: ").append(getFailedMatches())
+                .append(", path errors: ").append(getPathErrors())
+                .append(", zero distance segments: ").append(getZeroDistanceSegments()).append('\n');
+        report.append("split pieces: ").append(getSplitPieces())
+                .append(", retried pieces: ").append(getRetriedPieces())
+                .append(", dropped pieces: ").append(getDroppedPieces()).append('\n');
+        report.append("points filtered:");
+        for (TrajectoryFilter.DropReason reason : TrajectoryFilter.DropReason.values())
+            report.append(' ').append(reason.name().toLowerCase(Locale.ROOT)).append(' ').append(getFilteredPoints(reason));
+        report.append('\n');
+        report.append("matched points/s per trajectory: p50 ").append(matchedPointsPerSecond.getPercentile(0.5))
+                .append(", p99 ").append(matchedPointsPerSecond.getPercentile(0.99)).append('\n');
+        for (Stage stage : Stage.values()) {
+            Histogram latency = getLatency(stage);
+            report.append(String.format(Locale.ROOT, "%s: %d calls, total %.1f ms, mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                    stage.name().toLowerCase(Locale.ROOT), latency.getCount(), millis(latency.getSum()),
+                    millis((long) latency.getMean()), millis(latency.getPercentile(0.5)),
+                    millis(latency.getPercentile(0.99)), millis(latency.getMax())));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram latency : latencies)
+            latency.reset();
+        matchedPointsPerSecond.reset();
+        trajectoriesRead.reset();
+        pointsRead.reset();
+        malformedRows.reset();
+        trajectoriesMatched.reset();
+        failedMatches.reset();
+        pathErrors.reset();
+        zeroDistanceSegments.reset();
+        splitPieces.reset();
+        retriedPieces.reset();
+        droppedPieces.reset();
+        for (LongAdder filtered : filteredPoints)
+            filtered.reset();
+    }
+
+    public void writeTo(String filePath) throws IOException {
+        try (FileWriter writer = new FileWriter(filePath)) {
+            writer.write(getReport());
+        }
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, does nothing if they are already registered.
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(this, name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getReport();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * JMX view of {@link PipelineMetrics}. Latencies are in milliseconds.
+ */
+public interface PipelineMetricsMBean {
+
+    long getTrajectoriesRead();
+
+    long getPointsRead();
+
+    long getMalformedRows();
+
+    long getTrajectoriesMatched();
+
+    long getFailedMatches();
+
+    long getPathErrors();
+
+    long getZeroDistanceSegments();
+
+    long getSplitPieces();
+
+    long getRetriedPieces();
+
+    long getDroppedPieces();
+
+    long getFilteredPoints();
+
+    double getReadLatencyP50();
+
+    double getReadLatencyP99();
+
+    double getMatchLatencyP50();
+
+    double getMatchLatencyP99();
+
+    double getRouteLatencyP50();
+
+    double getRouteLatencyP99();
+
+    double getWriteLatencyP50();
+
+    double getWriteLatencyP99();
+
+    long getMatchedPointsPerSecondP50();
+
+    String getReport();
+
+    void reset();
+}
@@ -0,0 +1,30 @@
+/**
+ * Import an OSM file into a graph folder that MapMatcher can memory-map at startup, with
+ * {@code -Dmapmatcher.preparedGraph=<graph folder>}. The CH or LM preparation of {@code -Dmapmatcher.routing} is
+ * stored with it, so the matcher must be started with the same routing mode.
+ * <p>
+ * Usage: {@code PrepareGraph <osm file> <graph folder>}
+ */
+public class PrepareGraph {
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: PrepareGraph <osm file> <graph folder>");
+            System.exit(1);
+        }
+
+        prepare(args[0], args[1]);
+    }
+
+    static void prepare(String osmFile, String graphLocation) {
+        long start = System.currentTimeMillis();
+        MyGraphHopper hopper = MapMatcher.createHopper(MapMatcher.RoutingMode.fromSystemProperty());
+        hopper.setDataReaderFile(osmFile);
+        hopper.setGraphHopperLocation(graphLocation);
+        hopper.importOrLoad();
+        System.out.println("Prepared " + hopper.getGraphHopperStorage().getNodes() + " nodes and "
+                + hopper.getGraphHopperStorage().getAllEdges().getMaxId() + " edges in " + graphLocation + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+        hopper.close();
+    }
+}
@@ -0,0 +1,19 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Row oriented sink for exporter output. Fields are written one at a time as primitives and each row is terminated
+ * with {@link #endRecord()}. Implementations are not thread-safe.
+ */
+public interface RecordWriter extends Closeable {
+
+    void writeInt(int value) throws IOException;
+
+    void writeLong(long value) throws IOException;
+
+    void writeDouble(double value) throws IOException;
+
+    void endRecord() throws IOException;
+
+    void flush() throws IOException;
+}
@@ -1,14 +1,22 @@
-
 import com.graphhopper.util.GPXEntry;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 
 public class Trajectory {
 
+    private static final int INITIAL_CAPACITY = 16;
+
     private int id;
     private int taxiId;
-    private List<GPXEntry> points = new ArrayList<>();
+    // points are kept in parallel primitive arrays, GPXEntry objects are only created on access
+    private int size = 0;
+    private double[] lats = new double[INITIAL_CAPACITY];
+    private double[] lngs = new double[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private final List<GPXEntry> points = new PointsView();
 
     public Trajectory(int id, int taxiId) {
         this.id = id;
@@ -16,7 +24,60 @@ public class Trajectory {
     }
 
     public void addPoint(double lat, double lng, long timestamp) {
-        points.add(new GPXEntry(lat, lng, timestamp));
+        if (size == lats.length) {
+            int capacity = size + (size >> 1) + 1;
+            lats = Arrays.copyOf(lats, capacity);
+            lngs = Arrays.copyOf(lngs, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+        lats[size] = lat;
+        lngs[size] = lng;
+        timestamps[size] = timestamp;
+        size++;
+    }
+
+    /**
+     * Remove the first points, used to slide a bounded window over a live trajectory.
+     *
+     * @param count number of points to remove from the start
+     */
+    public void removePoints(int count) {
+        if (count > size)
+            throw new IndexOutOfBoundsException("Can't remove " + count + " of " + size + " points");
+        System.arraycopy(lats, count, lats, 0, size - count);
+        System.arraycopy(lngs, count, lngs, 0, size - count);
+        System.arraycopy(timestamps, count, timestamps, 0, size - count);
+        size -= count;
+    }
+
+    /**
+     * Overwrite a point, used with {@link #truncate(int)} to drop points in place.
+     */
+    public void setPoint(int index, double lat, double lng, long timestamp) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size + " points");
+        lats[index] = lat;
+        lngs[index] = lng;
+        timestamps[index] = timestamp;
+    }
+
+    /**
+     * Keep only the first points.
+     */
+    public void truncate(int newSize) {
+        if (newSize > size)
+            throw new IndexOutOfBoundsException("Can't truncate " + size + " points to " + newSize);
+        size = newSize;
+    }
+
+    /**
+     * Shrink the point arrays to the number of points, for trajectories that are kept in memory.
+     */
+    public void trimToSize() {
+        if (size == lats.length) return;
+        lats = Arrays.copyOf(lats, size);
+        lngs = Arrays.copyOf(lngs, size);
+        timestamps = Arrays.copyOf(timestamps, size);
     }
 
     public int getId() {
@@ -27,7 +88,41 @@ public class Trajectory {
         return taxiId;
     }
 
+    public int size() {
+        return size;
+    }
+
+    public double getLat(int index) {
+        return lats[index];
+    }
+
+    public double getLng(int index) {
+        return lngs[index];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * @return read-only view of the points, creating a new GPXEntry on every access
+     */
     public List<GPXEntry> getPoints() {
         return points;
     }
+
+    private class PointsView extends AbstractList<GPXEntry> implements RandomAccess {
+
+        @Override
+        public GPXEntry get(int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            return new GPXEntry(lats[index], lngs[index], timestamps[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
 }
@@ -0,0 +1,137 @@
+import com.graphhopper.util.Helper;
+
+/**
+ * Drops points that only add Viterbi work before a trajectory is matched. The steps run in the order of
+ * {@link DropReason} and each one can be turned off by setting its threshold to 0. Points are removed in place and
+ * the dropped points are counted per reason in {@link PipelineMetrics}.
+ */
+public class TrajectoryFilter {
+
+    public enum DropReason {
+        /** timestamp not after the previous point, repeated or out of order fixes */
+        DUPLICATE,
+        /** single fix that can only be reached above the maximum speed, and left the same way */
+        OUTLIER,
+        /** fixes of a taxi standing still for the stop duration, only the first and last one of the stop are kept */
+        STOP,
+        /** closer than the minimum distance to the previous point, unless the maximum interval passed */
+        THINNING
+    }
+
+    private final double maxSpeed;
+    private final double stopRadius;
+    private final long stopDuration;
+    private final double minDistance;
+    private final long maxInterval;
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+    /**
+     * @param maxSpeed    m/s, faster points are outliers
+     * @param stopRadius   meters around the first fix of a stop
+     * @param stopDuration milliseconds a taxi must stay within the radius, so slow traffic is not taken for a stop
+     * @param minDistance  meters between kept points
+     * @param maxInterval  milliseconds after which a point is kept whatever its distance
+     */
+    public TrajectoryFilter(double maxSpeed, double stopRadius, long stopDuration, double minDistance, long maxInterval) {
+        this.maxSpeed = maxSpeed;
+        this.stopRadius = stopRadius;
+        this.stopDuration = stopDuration;
+        this.minDistance = minDistance;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * The filter configured with {@code -Dmapmatcher.filter=true} and the {@code mapmatcher.filter.maxSpeed},
+     * {@code stopRadius}, {@code stopDuration}, {@code minDistance} and {@code maxInterval} properties, or null if
+     * filtering is off.
+     */
+    public static TrajectoryFilter fromSystemProperties() {
+        if (!Boolean.getBoolean("mapmatcher.filter"))
+            return null;
+        return new TrajectoryFilter(
+                Double.parseDouble(System.getProperty("mapmatcher.filter.maxSpeed", "50")),
+                Double.parseDouble(System.getProperty("mapmatcher.filter.stopRadius", "15")),
+                Long.getLong("mapmatcher.filter.stopDuration", 60_000L),
+                Double.parseDouble(System.getProperty("mapmatcher.filter.minDistance", "0")),
+                Long.getLong("mapmatcher.filter.maxInterval", 60_000L));
+    }
+
+    public void apply(Trajectory t) {
+        removeDuplicates(t);
+        if (maxSpeed > 0)
+            removeOutliers(t);
+        if (stopRadius > 0)
+            collapseStops(t);
+        if (minDistance > 0)
+            thin(t);
+    }
+
+    private void removeDuplicates(Trajectory t) {
+        int kept = t.size() > 0 ? 1 : 0;
+        for (int i = 1; i < t.size(); i++) {
+            if (t.getTimestamp(i) > t.getTimestamp(kept - 1))
+                copy(t, i, kept++);
+        }
+        truncate(t, kept, DropReason.DUPLICATE);
+    }
+
+    private void removeOutliers(Trajectory t) {
+        int kept = t.size() > 0 ? 1 : 0;
+        for (int i = 1; i < t.size(); i++) {
+            boolean spike = speed(t, kept - 1, i) > maxSpeed && (i == t.size() - 1 || speed(t, i, i + 1) > maxSpeed);
+            if (!spike)
+                copy(t, i, kept++);
+        }
+        truncate(t, kept, DropReason.OUTLIER);
+    }
+
+    private void collapseStops(Trajectory t) {
+        int kept = 0;
+        int anchor = 0;
+        while (anchor < t.size()) {
+            int end = anchor + 1;
+            while (end < t.size() && distance(t, anchor, end) <= stopRadius)
+                end++;
+            copy(t, anchor, kept++);
+            // points up to end - 1 are within the radius, a stop if they span the duration, then the last one is kept
+            // for the departure time
+            if (end - 1 > anchor && t.getTimestamp(end - 1) - t.getTimestamp(anchor) >= stopDuration) {
+                copy(t, end - 1, kept++);
+                anchor = end;
+            } else {
+                anchor++;
+            }
+        }
+        truncate(t, kept, DropReason.STOP);
+    }
+
+    private void thin(Trajectory t) {
+        int kept = t.size() > 0 ? 1 : 0;
+        for (int i = 1; i < t.size(); i++) {
+            if (i == t.size() - 1 || distance(t, kept - 1, i) >= minDistance
+                    || t.getTimestamp(i) - t.getTimestamp(kept - 1) >= maxInterval)
+                copy(t, i, kept++);
+        }
+        truncate(t, kept, DropReason.THINNING);
+    }
+
+    private void truncate(Trajectory t, int kept, DropReason reason) {
+        if (kept < t.size()) {
+            metrics.countFiltered(reason, t.size() - kept);
+            t.truncate(kept);
+        }
+    }
+
+    private static void copy(Trajectory t, int from, int to) {
+        if (from != to)
+            t.setPoint(to, t.getLat(from), t.getLng(from), t.getTimestamp(from));
+    }
+
+    private static double distance(Trajectory t, int from, int to) {
+        return Helper.DIST_EARTH.calcDist(t.getLat(from), t.getLng(from), t.getLat(to), t.getLng(to));
+    }
+
+    private static double speed(Trajectory t, int from, int to) {
+        return distance(t, from, to) / (t.getTimestamp(to) - t.getTimestamp(from)) * 1000;
+    }
+}
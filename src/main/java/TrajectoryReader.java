@@ -1,47 +1,220 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class TrajectoryReader {
 
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int FIELDS = 5;
+    private static final byte SEPARATOR = ';';
+    // powers of ten that are exact doubles, see parseDouble
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
     private File file;
+    private long malformedRows;
+    private long readStart;
+    private PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+    // separator positions and fields of the row being parsed
+    private final int[] bounds = new int[FIELDS + 1];
+    private int rowTaxiId;
+    private int rowId;
+    private double rowLat;
+    private double rowLng;
+    private long rowTimestamp;
 
     public TrajectoryReader(String filename) {
-        String fullPath = TrajectoryReader.class.getResource(filename).getPath();
-        file = new File(fullPath);
+        this(new File(TrajectoryReader.class.getResource(filename).getPath()));
+    }
+
+    public TrajectoryReader(File file) {
+        this.file = file;
         System.out.println(file.getPath());
     }
 
     public List<Trajectory> readTrajectories() {
         List<Trajectory> trajectories = new ArrayList<>();
+        readTrajectories(t -> {
+            t.trimToSize();
+            trajectories.add(t);
+        });
+        return trajectories;
+    }
 
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            String line = reader.readLine();
+    /**
+     * Read the file sequentially and hand each trajectory to the consumer as soon as its id changes, so only the
+     * trajectory being read is kept in memory. Rows are decoded in place from a reused byte buffer; rows that cannot
+     * be parsed are skipped and counted, see {@link #getMalformedRows()}.
+     *
+     * @param consumer
+     */
+    public void readTrajectories(Consumer<Trajectory> consumer) {
+        malformedRows = 0;
+        readStart = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] bytes = buffer.array();
+            boolean header = true, skipLine = false, eof = false;
             Trajectory t = null;
             int currentId = -1;
-            while((line = reader.readLine()) != null) {
-                String[] split = line.split(";");
-                int taxiId = Integer.valueOf(split[0]);
-                int id = Integer.valueOf(split[1]);
-                double lat = Double.valueOf(split[2]);
-                double lng = Double.valueOf(split[3]);
-                long timestamp = Long.valueOf(split[4]);
-                if (currentId == -1)
-                    t = new Trajectory(id, taxiId);
-                else if (id != currentId) {
-                    trajectories.add(t);
-                    t = new Trajectory(id, taxiId);
+            while (!eof) {
+                eof = channel.read(buffer) < 0;
+                int limit = buffer.position();
+                int lineStart = 0;
+                for (int i = 0; i <= limit; i++) {
+                    if (i == limit && !(eof && lineStart < limit)) break;
+                    if (i < limit && bytes[i] != '\n') continue;
+
+                    int lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+                    if (header || skipLine) {
+                        header = skipLine = false;
+                    } else if (parseRow(bytes, lineStart, lineEnd)) {
+                        if (currentId == -1)
+                            t = new Trajectory(rowId, rowTaxiId);
+                        else if (rowId != currentId) {
+                            emit(consumer, t);
+                            t = new Trajectory(rowId, rowTaxiId);
+                        }
+                        t.addPoint(rowLat, rowLng, rowTimestamp);
+                        currentId = rowId;
+                    } else {
+                        malformedRows++;
+                    }
+                    lineStart = i + 1;
+                }
+
+                if (lineStart == 0 && limit == bytes.length) {
+                    // a line longer than the buffer can't be a valid row, drop what we have and skip the rest of it
+                    if (!skipLine && !header) malformedRows++;
+                    skipLine = true;
+                    header = false;
+                    buffer.clear();
+                } else {
+                    int remaining = Math.max(0, limit - lineStart);
+                    System.arraycopy(bytes, lineStart, bytes, 0, remaining);
+                    buffer.clear();
+                    buffer.position(remaining);
                 }
-                t.addPoint(lat, lng, timestamp);
-                currentId = id;
             }
-            trajectories.add(t);
+            if (t != null)
+                emit(consumer, t);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        metrics.countMalformedRows(malformedRows);
+        if (malformedRows > 0)
+            System.out.println("Skipped " + malformedRows + " malformed rows");
+    }
 
-        return trajectories;
+    /**
+     * Hand a trajectory to the consumer, recording the time spent reading it but not the time of the consumer.
+     */
+    private void emit(Consumer<Trajectory> consumer, Trajectory t) {
+        metrics.recordLatency(PipelineMetrics.Stage.READ, System.nanoTime() - readStart);
+        metrics.countRead(t.size());
+        consumer.accept(t);
+        readStart = System.nanoTime();
+    }
+
+    /**
+     * @return number of rows skipped by the last read because they could not be parsed
+     */
+    public long getMalformedRows() {
+        return malformedRows;
+    }
+
+    private boolean parseRow(byte[] bytes, int start, int end) {
+        bounds[0] = start - 1;
+        int field = 1;
+        for (int i = start; i < end && field <= FIELDS; i++) {
+            if (bytes[i] == SEPARATOR) bounds[field++] = i;
+        }
+        if (field == FIELDS) bounds[field++] = end;
+        if (field <= FIELDS) return false;
+
+        try {
+            rowTaxiId = parseInt(bytes, bounds[0] + 1, bounds[1]);
+            rowId = parseInt(bytes, bounds[1] + 1, bounds[2]);
+            rowLat = parseDouble(bytes, bounds[2] + 1, bounds[3]);
+            rowLng = parseDouble(bytes, bounds[3] + 1, bounds[4]);
+            rowTimestamp = parseLong(bytes, bounds[4] + 1, bounds[5]);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static int parseInt(byte[] bytes, int start, int end) {
+        long value = parseLong(bytes, start, end);
+        if (value != (int) value)
+            throw new NumberFormatException("Value out of int range: " + value);
+        return (int) value;
+    }
+
+    private static long parseLong(byte[] bytes, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        // up to 18 digits can't overflow, leave longer numbers to the JDK
+        if (i == end || end - i > 18)
+            return Long.parseLong(ascii(bytes, start, end));
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException(ascii(bytes, start, end));
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Plain decimals with up to 15 significant digits are decoded directly: the digits and the power of ten are both
+     * exact doubles, so a single multiplication or division is correctly rounded and gives the same value as
+     * {@link Double#parseDouble(String)}. Anything else is handed to the JDK.
+     */
+    private static double parseDouble(byte[] bytes, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean seenDigit = false, afterPoint = false;
+        for (; i < end; i++) {
+            byte c = bytes[i];
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if ((mantissa != 0 || c != '0') && ++digits > 15)
+                    return Double.parseDouble(ascii(bytes, start, end));
+                mantissa = mantissa * 10 + (c - '0');
+                if (afterPoint) exponent--;
+            } else if (c == '.' && !afterPoint) {
+                afterPoint = true;
+            } else {
+                return Double.parseDouble(ascii(bytes, start, end));
+            }
+        }
+        if (!seenDigit || exponent < -22)
+            return Double.parseDouble(ascii(bytes, start, end));
+        double value = exponent == 0 ? mantissa : mantissa / POWERS_OF_TEN[-exponent];
+        return negative ? -value : value;
+    }
+
+    private static String ascii(byte[] bytes, int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.US_ASCII);
     }
 
 }
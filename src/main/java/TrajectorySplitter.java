@@ -0,0 +1,148 @@
+import com.graphhopper.util.Helper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts trajectories at large time or space gaps, so the pieces can be matched independently, and halves pieces that
+ * fail to match so only the failing part is retried.
+ * <p>
+ * A piece is reported under a sub-id: the trajectory id in the low 32 bits and, in the high 32 bits, 1 + the index
+ * of the first point of the piece in the original trajectory. A trajectory that is not split keeps its id.
+ */
+public class TrajectorySplitter {
+
+    private final long maxGap;
+    private final double maxDistance;
+    private final int minPoints;
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+    /**
+     * @param maxGap      milliseconds between consecutive points above which the trajectory is cut
+     * @param maxDistance meters between consecutive points above which the trajectory is cut
+     * @param minPoints   pieces with fewer points are dropped and not halved any further
+     */
+    public TrajectorySplitter(long maxGap, double maxDistance, int minPoints) {
+        this.maxGap = maxGap;
+        this.maxDistance = maxDistance;
+        this.minPoints = Math.max(2, minPoints);
+    }
+
+    /**
+     * The splitter configured with {@code -Dmapmatcher.split=true} and the {@code mapmatcher.split.maxGap},
+     * {@code maxDistance} and {@code minPoints} properties, or null if splitting is off.
+     */
+    public static TrajectorySplitter fromSystemProperties() {
+        if (!Boolean.getBoolean("mapmatcher.split"))
+            return null;
+        return new TrajectorySplitter(
+                Long.getLong("mapmatcher.split.maxGap", 120_000L),
+                Double.parseDouble(System.getProperty("mapmatcher.split.maxDistance", "1000")),
+                Integer.getInteger("mapmatcher.split.minPoints", 5));
+    }
+
+    public static long getSubId(int trajectoryId, int firstPoint) {
+        return ((long) (firstPoint + 1) << 32) | (trajectoryId & 0xffffffffL);
+    }
+
+    public static int getTrajectoryId(long subId) {
+        return (int) subId;
+    }
+
+    /**
+     * @return index of the first point of the piece in the original trajectory, or -1 if it is not split
+     */
+    public static int getFirstPoint(long subId) {
+        return (int) (subId >>> 32) - 1;
+    }
+
+    /**
+     * Cut the trajectory at every gap. Without gaps the whole trajectory is the only piece.
+     */
+    public List<Piece> split(Trajectory t) {
+        List<Piece> pieces = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= t.size(); i++) {
+            if (i < t.size() && !isGap(t, i)) continue;
+            if (start == 0 && i == t.size())
+                pieces.add(new Piece(t, -1));
+            else
+                addPiece(pieces, t, start, i);
+            start = i;
+        }
+        if (pieces.size() > 1)
+            metrics.countSplitPieces(pieces.size());
+        return pieces;
+    }
+
+    public boolean canHalve(Piece piece) {
+        return piece.trajectory.size() >= 2 * minPoints;
+    }
+
+    /**
+     * Cut a piece that failed to match in two, at its largest time gap that leaves enough points on both sides. Of
+     * equal gaps the one closest to the middle is taken, so a regular trace is halved.
+     */
+    public List<Piece> halve(Piece piece) {
+        Trajectory t = piece.trajectory;
+        int middle = t.size() / 2;
+        int cut = middle;
+        long largestGap = -1;
+        for (int i = minPoints; i <= t.size() - minPoints; i++) {
+            long gap = t.getTimestamp(i) - t.getTimestamp(i - 1);
+            if (gap > largestGap || gap == largestGap && Math.abs(i - middle) < Math.abs(cut - middle)) {
+                largestGap = gap;
+                cut = i;
+            }
+        }
+        metrics.countRetriedPiece();
+        int offset = Math.max(0, piece.firstPoint);
+        List<Piece> halves = new ArrayList<>(2);
+        halves.add(new Piece(copy(t, 0, cut), offset));
+        halves.add(new Piece(copy(t, cut, t.size()), offset + cut));
+        return halves;
+    }
+
+    private boolean isGap(Trajectory t, int i) {
+        return t.getTimestamp(i) - t.getTimestamp(i - 1) > maxGap
+                || Helper.DIST_EARTH.calcDist(t.getLat(i - 1), t.getLng(i - 1), t.getLat(i), t.getLng(i)) > maxDistance;
+    }
+
+    private void addPiece(List<Piece> pieces, Trajectory t, int from, int to) {
+        if (to - from < minPoints) {
+            metrics.countDroppedPiece();
+            return;
+        }
+        pieces.add(new Piece(copy(t, from, to), from));
+    }
+
+    private static Trajectory copy(Trajectory t, int from, int to) {
+        Trajectory piece = new Trajectory(t.getId(), t.getTaxiId());
+        for (int i = from; i < to; i++)
+            piece.addPoint(t.getLat(i), t.getLng(i), t.getTimestamp(i));
+        piece.trimToSize();
+        return piece;
+    }
+
+    /**
+     * Points of a trajectory from firstPoint on, or the whole trajectory if firstPoint is -1.
+     */
+    public static class Piece {
+
+        private final Trajectory trajectory;
+        private final int firstPoint;
+
+        Piece(Trajectory trajectory, int firstPoint) {
+            this.trajectory = trajectory;
+            this.firstPoint = firstPoint;
+        }
+
+        public Trajectory getTrajectory() {
+            return trajectory;
+        }
+
+        public long getSubId() {
+            return firstPoint < 0 ? trajectory.getId() : TrajectorySplitter.getSubId(trajectory.getId(), firstPoint);
+        }
+    }
+}
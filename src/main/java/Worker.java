@@ -0,0 +1,100 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Matching process started by {@link Coordinator}. It loads the graph once, connects back to the coordinator and
+ * matches the trajectories it receives on a local thread pool. The node timestamps of each trajectory are sent back
+ * as one frame, so the coordinator never interleaves rows of different trajectories.
+ * <p>
+ * Usage: {@code Worker <coordinator port> <worker index> <threads>}
+ */
+public class Worker {
+
+    // coordinator to worker
+    static final byte TRAJECTORY = 1;
+    static final byte END_OF_INPUT = 0;
+    // worker to coordinator
+    static final byte RESULT = 1;
+    static final byte DONE = 0;
+
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        int index = Integer.parseInt(args[1]);
+        int threads = Integer.parseInt(args[2]);
+
+        MapMatcher mapMatcher = MapMatcher.getInstance();
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+            out.writeInt(index);
+            out.flush();
+
+            ThreadLocal<Frame> frames = ThreadLocal.withInitial(Frame::new);
+            mapMatcher.run(sink -> {
+                try {
+                    while (in.readByte() == TRAJECTORY)
+                        sink.accept(readTrajectory(in));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, threads, (tid, result) -> {
+                Frame frame = frames.get();
+                try {
+                    frame.reset();
+                    mapMatcher.writeNodeTimestamps(tid, result, MapMatcher.TimestampMode.ROUTING, frame.writer);
+                    synchronized (out) {
+                        out.writeByte(RESULT);
+                        out.writeInt(frame.writer.getRecords());
+                        out.writeInt(frame.bytes.size());
+                        frame.bytes.writeTo(out);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            out.writeByte(DONE);
+            out.flush();
+        }
+        System.out.print("worker " + index + ": " + metrics.getReport());
+    }
+
+    static void writeTrajectory(DataOutput out, Trajectory t) throws IOException {
+        out.writeByte(TRAJECTORY);
+        out.writeInt(t.getId());
+        out.writeInt(t.getTaxiId());
+        out.writeInt(t.size());
+        for (int i = 0; i < t.size(); i++) {
+            out.writeDouble(t.getLat(i));
+            out.writeDouble(t.getLng(i));
+            out.writeLong(t.getTimestamp(i));
+        }
+    }
+
+    static Trajectory readTrajectory(DataInput in) throws IOException {
+        Trajectory t = new Trajectory(in.readInt(), in.readInt());
+        int size = in.readInt();
+        for (int i = 0; i < size; i++)
+            t.addPoint(in.readDouble(), in.readDouble(), in.readLong());
+        t.trimToSize();
+        return t;
+    }
+
+    /**
+     * Rows of one trajectory, kept until they are sent as a single frame.
+     */
+    private static class Frame {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 12);
+        final DataRecordWriter writer = new DataRecordWriter(new DataOutputStream(bytes));
+
+        void reset() {
+            bytes.reset();
+            writer.resetRecords();
+        }
+    }
+}